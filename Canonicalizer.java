@@ -1,55 +1,151 @@
 package jsolve;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
 import java.util.List;
 
 public class Canonicalizer {
-	static boolean order(Expression a, Expression b) {
-		return a.toString().compareTo(b.toString()) < 0;
+	static int order(Expression a, Expression b) {
+		/* a total order on canonical expressions, by hash and then by structure */
+		if (a == b) {
+			return 0; /* canonical expressions are shared, so this is the common case */
+		}
+		int result = Integer.compare(a.hashCode(), b.hashCode());
+		if (result == 0) {
+			result = a.getType().compareTo(b.getType());
+		}
+		if (result != 0) {
+			return result;
+		} else if (a.isSymbol()) {
+			return a.getSymbol().compareTo(b.getSymbol());
+		} else if (a.isUnary()) {
+			return order(a.getChild(), b.getChild());
+		}
+		result = order(a.getLeft(), b.getLeft());
+		if (result == 0) {
+			result = order(a.getRight(), b.getRight());
+		}
+		return result;
 	}
 
-	static List<Expression> sort(List<Expression> expressions) {
-		if (expressions.size() <= 1) {
-			return expressions;
-		}
-		List<Expression> less = new ArrayList<Expression>();
-		List<Expression> greater = new ArrayList<Expression>();
-		int pivotIndex = expressions.size() / 2;
-		Expression pivot = expressions.get(pivotIndex);
-		for (int i = 0; i < expressions.size(); ++i) {
-			if (i != pivotIndex) {
-				if (order(expressions.get(i), pivot)) {
-					less.add(expressions.get(i));
-				} else {
-					greater.add(expressions.get(i));
-				}
+	static class Term {
+		/* a canonical product with the sign held separately */
+		Term(int sign, Expression magnitude) {
+			sign_ = sign;
+			magnitude_ = magnitude;
+		}
+		int sign_;
+		Expression magnitude_;
+	}
+
+	static Comparator<Expression.Operand> factorOrder = new Comparator<Expression.Operand>() {
+		public int compare(Expression.Operand a, Expression.Operand b) {
+			int result = order(a.expression_, b.expression_);
+			return result != 0 ? result : Boolean.compare(a.inverse_, b.inverse_);
+		}
+	};
+
+	static Comparator<Term> termOrder = new Comparator<Term>() {
+		public int compare(Term a, Term b) {
+			int result = order(a.magnitude_, b.magnitude_);
+			return result != 0 ? result : Integer.compare(a.sign_, b.sign_);
+		}
+	};
+
+	static Term product(Expression expression, boolean negative) {
+		List<Expression.Operand> factors = new ArrayList<Expression.Operand>();
+		int sign = Expression.product(expression, factors);
+		for (int i = 0; i < factors.size(); ++i) {
+			Expression.Operand factor = factors.get(i);
+			if (factor.expression_.isNumber()) {
+				factor.expression_ = factor.expression_.getMagnitude();
+			} else {
+				factor.expression_ = canonicalize(factor.expression_);
 			}
 		}
-		List<Expression> result = new ArrayList<Expression>();
-		result.addAll(sort(less));
-		result.add(pivot);
-		result.addAll(sort(greater));
-		return result;
+		Collections.sort(factors, factorOrder);
+		Expression numerator = null;
+		Expression denominator = null;
+		for (Expression.Operand factor : factors) {
+			if (factor.inverse_) {
+				denominator = denominator == null ? factor.expression_ : Expression.multiply(denominator, factor.expression_);
+			} else {
+				numerator = numerator == null ? factor.expression_ : Expression.multiply(numerator, factor.expression_);
+			}
+		}
+		if (numerator == null) {
+			numerator = Expression.symbol("1");
+		}
+		if (denominator != null) {
+			numerator = Expression.divide(numerator, denominator);
+		}
+		return new Term(negative ? -sign : sign, numerator);
 	}
 
 	static Expression canonicalize(Expression expression) {
-		Expression result = expression.copy();
-		if (result.isBinary()) {
-			result.setLeft(canonicalize(result.getLeft()));
-			result.setRight(canonicalize(result.getRight()));
-		} else if (result.isUnary()) {
-			result.setChild(canonicalize(result.getChild()));
-		}
-		result = Iterator.listProduct(sort(Iterator.getFactors(result, 0)));
-		result = Iterator.listSum(sort(Iterator.getTerms(result)));
-		return result;
-	}
-	
-	static String toString(Expression expression) {
-		return canonicalize(expression).toString();
+		Expression result = expression.canonical_;
+		if (result != null) {
+			return result; /* already computed, or canonical itself */
+		}
+		/* canonicalize the operands first with an explicit stack, so each node below finds them memoized */
+		Deque<Expression> stack = new ArrayDeque<Expression>();
+		stack.push(expression);
+		while (!stack.isEmpty()) {
+			Expression top = stack.peek();
+			if (top.canonical_ != null) {
+				stack.pop();
+				continue;
+			}
+			boolean ready = true;
+			for (Expression operand : top.operands()) {
+				if (operand.canonical_ == null) {
+					stack.push(operand);
+					ready = false;
+				}
+			}
+			if (ready) {
+				stack.pop();
+				build(top);
+			}
+		}
+		return expression.canonical_;
 	}
-	
-	static boolean compare(Expression a, Expression b) {
-		return toString(a).equals(toString(b));
+
+	private static Expression build(Expression expression) {
+		Expression result = null;
+		if (expression.isProduct()) {
+			Term term = product(expression, false);
+			result = term.sign_ > 0 ? term.magnitude_ : Expression.negate(term.magnitude_);
+		} else if (expression.isSum()) {
+			List<Expression.Operand> operands = new ArrayList<Expression.Operand>();
+			Expression.terms(expression, operands);
+			List<Term> terms = new ArrayList<Term>();
+			for (Expression.Operand operand : operands) {
+				terms.add(product(operand.expression_, operand.inverse_));
+			}
+			Collections.sort(terms, termOrder);
+			for (Term term : terms) {
+				if (term.sign_ > 0) {
+					result = result == null ? term.magnitude_ : Expression.add(result, term.magnitude_);
+				}
+			}
+			for (Term term : terms) {
+				if (term.sign_ < 0) {
+					result = result == null ? Expression.negate(term.magnitude_) : Expression.subtract(result, term.magnitude_);
+				}
+			}
+		} else if (expression.isBinary()) {
+			result = Expression.binary(expression.getType(), canonicalize(expression.getLeft()), canonicalize(expression.getRight()));
+		} else if (expression.isUnary()) {
+			result = Expression.unary(expression.getType(), canonicalize(expression.getChild()));
+		} else {
+			result = expression;
+		}
+		result.canonical_ = result;
+		expression.canonical_ = result;
+		return result;
 	}
 }
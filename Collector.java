@@ -1,63 +1,32 @@
 package jsolve;
 
 import java.util.ArrayList;
-import java.util.Collection;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
 public class Collector {
-	static class ExpressionMultiple extends Expression {
+	static class ExpressionMultiple {
 		ExpressionMultiple(Expression lhs) {
-			super(Expression.Type.NODE_MULTIPLY);
-			setChild(lhs);
-			count_ = new Integer(0);
+			expression_ = lhs;
+			count_ = 0;
+		}
+		Expression getChild() {
+			return expression_;
 		}
 		Expression getExpression(Expression.Type type) {
-			Expression expression = new Expression(type);
-			expression.setLeft(getChild());
-			expression.setRight(new Expression(count_.toString()));
-			return expression;
+			return Expression.binary(type, expression_, Expression.constant(Rational.valueOf(count_)));
 		}
-		void raise(Integer count) {
+		void raise(int count) {
 			count_ += count;
 		}
-		Integer getMultiple() {
+		int getMultiple() {
 			return count_;
 		}
-		Integer count_;
+		Expression expression_;
+		int count_;
 	}
 	
-	static class ExpressionMap {
-		ExpressionMap(Expression owner) {
-			owner_ = owner;
-			factors_ = new HashMap<String, ExpressionMultiple>();
-		}
-		
-		Expression getOwner() {
-			return owner_;
-		}
-		
-		boolean hasOwner() {
-			return owner_ != null;
-		}
-		
-		ExpressionMultiple get(String key) {
-			return factors_.get(key);
-		}
-		
-		void put(String key, ExpressionMultiple expression) {
-			factors_.put(key, expression);
-		}
-		
-		Collection<ExpressionMultiple> getFactors() {
-			return factors_.values();
-		}
-	
-		Expression owner_;
-		Map<String, ExpressionMultiple> factors_;
-	}
-
 	static Expression collect(Expression expression) {
 		Expression result = collect(expression, "x");
 		List<String> variables = Substitution.getSymbols(expression);
@@ -68,133 +37,133 @@ public class Collector {
 	}
 
 	static Expression collect(Expression expression, String variable) {
+		/* group the terms by the factor that holds the variable. the rest of each term is added into a
+		 * polynomial over the factors that do not, so numeric multiples combine exactly as they are found */
 		expression = normalizeExponents(expression);
-		Map<String, ExpressionMap> map = new HashMap<String, ExpressionMap>();
-		List<Expression> terms = Iterator.getTerms(expression);
-		for (Expression term : terms) {
-			Expression coefficient = new Expression("1");
+		SparsePolynomial.Variables atoms = new SparsePolynomial.Variables();
+		Map<Expression, SparsePolynomial> coefficients = new LinkedHashMap<Expression, SparsePolynomial>();
+		List<Expression> undefined = new ArrayList<Expression>();
+		for (Iterator.Terms terms = new Iterator.Terms(expression); terms.next();) {
+			if (dividesByZero(terms.term_)) {
+				undefined.add(terms.getTerm()); /* kept whole, a zero coefficient would otherwise cancel it */
+				continue;
+			}
+			SparsePolynomial coefficient = SparsePolynomial.constant(terms.negative_ ? Rational.ONE.negate() : Rational.ONE);
 			Expression owner = null;
-			List<Expression> factors = Iterator.getFactors(term, 0);
-			for (Expression factor : factors) {
+			for (Iterator.Factors factors = new Iterator.Factors(terms.term_); factors.next();) {
+				Expression factor = factors.getFactor();
 				if (factor.contains(variable)) {
 					if (owner == null) {
 						owner = factor;
 						continue;
-					} else if (owner.toString().equals(factor.toString())) {
+					} else if (owner == factor /* nodes are shared, so equal trees are the same node */) {
 						continue;
 					}
 				}
-				if (coefficient == null) {
-					coefficient = factor;
+				Rational value = factors.factor_.getSymbolAsRational();
+				if (value != null && factors.inverse_) {
+					value = value.reciprocal();
+				}
+				if (value != null) {
+					coefficient = coefficient.scale(value);
 				} else {
-					coefficient = Expression.multiply(coefficient, factor);
+					coefficient = coefficient.multiply(SparsePolynomial.variable(atoms.indexOf(factor)));
 				}
 			}
-			ExpressionMap entry = null;
-			if (owner == null) {
-				entry = map.get(coefficient.toString());
-				if (entry == null) {
-					entry = new ExpressionMap(null); /* indicates that this is a factor in the constant term */
-				}
-				owner = coefficient;
+			/* groups are keyed by the owner node, equal up to the order of its terms and factors, and kept
+			 * in the order they are first met. the terms without the variable are the group of null */
+			SparsePolynomial group = coefficients.get(owner);
+			if (group == null) {
+				coefficients.put(owner, coefficient);
 			} else {
-				entry = map.get(owner.toString());
-				if (entry == null) {
-					entry = new ExpressionMap(owner);
-				}
+				group.addAll(coefficient);
 			}
-			ExpressionMultiple multiple = entry.get(coefficient.toString());
-			if (multiple == null) {
-				multiple = new ExpressionMultiple(coefficient);
-			}
-			multiple.raise(1);
-			entry.put(coefficient.toString(), multiple);
-			map.put(owner.toString(), entry);
 		}
-		expression = null;
-		for (ExpressionMap newTerms : map.values()) {
-			Expression factor = null;
-			for (ExpressionMultiple coefficient : newTerms.getFactors()) {
-				Expression multiple = coefficient.getExpression(Expression.Type.NODE_MULTIPLY);
-				if (factor == null) {
-					factor = multiple;
-				} else {
-					factor = Expression.add(factor, multiple);
-				}
-			}
-			if (newTerms.hasOwner()) {
-				factor = Expression.multiply(newTerms.getOwner(), factor);
+		List<Expression> result = new ArrayList<Expression>();
+		for (Map.Entry<Expression, SparsePolynomial> group : coefficients.entrySet()) {
+			if (group.getValue().isZero()) {
+				continue; /* the terms cancelled */
 			}
-			if (expression == null) {
-				expression = factor;
-			} else {
-				expression = Expression.add(expression, factor);
+			Expression owner = group.getKey();
+			Expression coefficient = group.getValue().toExpression(atoms);
+			result.add(owner == null ? coefficient : Expression.multiply(owner, coefficient));
+		}
+		result.addAll(undefined);
+		return Iterator.listSum(result);
+	}
+
+	static boolean dividesByZero(Expression term) {
+		for (Iterator.Factors factors = new Iterator.Factors(term); factors.next();) {
+			if (factors.inverse_ && factors.factor_.isZero()) {
+				return true;
 			}
 		}
-		return expression;
+		return false;
 	}
 
 	static Expression normalizeExponents(Expression expression) {
-		List<Expression> terms = Iterator.getTerms(expression);
+		/* remembered on the node, so a subtree is normalized once however often fold reaches it */
+		Expression normalized = expression.normalized_;
+		if (normalized != null) {
+			return normalized;
+		}
 		List<Expression> newTerms = new ArrayList<Expression>();
-		for (Expression term : terms) {
-			Map<String, ExpressionMultiple> exponents = new HashMap<String, ExpressionMultiple>();
-			List<Expression> factors = Iterator.getFactors(term, 5);
-			for (Expression factor : factors) {
-				if (factor.getType().equals(Expression.Type.NODE_DIVIDE)) {
-					if (factor.getRight().isSymbol()) {
-						if (factor.getLeft().isOne()) {
-							Expression base = factor.getRight();
-							ExpressionMultiple value = exponents.get(base.toString());
-							if (value == null) {
-								value = new ExpressionMultiple(base);
-							}
-							value.raise(-1);
-							exponents.put(base.toString(), value);
-							continue;
+		boolean stable = true;
+		for (Iterator.Terms terms = new Iterator.Terms(expression); terms.next();) {
+			Map<Expression, ExpressionMultiple> exponents = new LinkedHashMap<Expression, ExpressionMultiple>();
+			for (Iterator.Factors factors = new Iterator.Factors(terms.getTerm(), 5); factors.next();) {
+				if (factors.inverse_) {
+					if (factors.factor_.isSymbol() && !factors.factor_.isZero()) { /* 0 / 0 does not cancel */
+						Expression base = factors.factor_;
+						ExpressionMultiple value = exponents.get(base);
+						if (value == null) {
+							value = new ExpressionMultiple(base);
 						}
+						value.raise(-1);
+						exponents.put(base, value);
+						continue;
 					}
-				} else if (factor.getType().equals(Expression.Type.NODE_EXPONENTIATE)) {
-					if (factor.getRight().isSymbol()) {
-						Expression base = factor.getLeft();
-						Integer power;
-						try {
-							power = Integer.parseInt(factor.getRight().getSymbol());
-						} catch (NumberFormatException e) {
-							power = null;
-						}
-						if (power != null) {
-							ExpressionMultiple value = exponents.get(base.toString());
-							if (value == null) {
-								value = new ExpressionMultiple(base);
-							}
-							value.raise(power);
-							exponents.put(base.toString(), value);
-							continue;
-						}
+				} else if (factors.base_ != factors.factor_) { /* an integer power */
+					Expression base = factors.base_;
+					ExpressionMultiple value = exponents.get(base);
+					if (value == null) {
+						value = new ExpressionMultiple(base);
 					}
+					value.raise(factors.multiplicity_);
+					exponents.put(base, value);
+					continue;
 				}
-				ExpressionMultiple value = exponents.get(factor.toString());
+				Expression factor = factors.getFactor();
+				ExpressionMultiple value = exponents.get(factor);
 				if (value == null) {
 					value = new ExpressionMultiple(factor);
 				}
 				value.raise(1);
-				exponents.put(factor.toString(), value);
+				exponents.put(factor, value);
 			}
 			ArrayList<Expression> product = new ArrayList<Expression>();
 			for (ExpressionMultiple factor : exponents.values()) {
+				if (factor.getMultiple() != 1 && factor.getChild().isNumber() && factor.getChild().getSymbolAsFloat() < 0) {
+					stable = false; /* a power of a negative number moves the sign, another pass may move it again */
+				}
 				if (factor.getMultiple() == 1) {
 					product.add(factor.getChild());
+				} else if (factor.getMultiple() == -1) {
+					product.add(Expression.divide(Expression.symbol("1"), factor.getChild()));
 				} else if (factor.getMultiple() < 0) {
-					Double absPower = -1.0 * factor.getMultiple();
-					Expression power = Expression.exponentiate(factor.getChild(), new Expression(absPower));
-					product.add(Expression.divide(new Expression("1"), power));
+					Expression power = Expression.exponentiate(factor.getChild(), Expression.constant(Rational.valueOf(-factor.getMultiple())));
+					product.add(Expression.divide(Expression.symbol("1"), power));
 				} else {
 					product.add(factor.getExpression(Expression.Type.NODE_EXPONENTIATE));
 				}
 			}
 			newTerms.add(Iterator.listProduct(product));
 		}
-		return Iterator.listSum(newTerms);
+		normalized = Iterator.listSum(newTerms);
+		expression.normalized_ = normalized;
+		if (stable) {
+			normalized.normalized_ = normalized; /* the pass is idempotent, so its result needs no second one */
+		}
+		return normalized;
 	}
 }
@@ -0,0 +1,176 @@
+package jsolve;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class Complex {
+	/* an exact complex number a + b*i with rational parts, so that constants built from integers and i
+	 * fold in one step rather than through e^(i*x) and the cos + i*sin expansion */
+	static final Complex I = new Complex(Rational.ZERO, Rational.ONE);
+
+	Complex(Rational real, Rational imaginary) {
+		real_ = real;
+		imaginary_ = imaginary;
+	}
+
+	static Complex valueOf(Expression expression) {
+		/* the exact value of a constant made of integers, i and arithmetic, or null */
+		Map<Expression, Complex> values = new IdentityHashMap<Expression, Complex>();
+		Deque<Expression> stack = new ArrayDeque<Expression>();
+		stack.push(expression);
+		while (!stack.isEmpty()) {
+			Expression top = stack.peek();
+			if (values.containsKey(top)) {
+				stack.pop();
+				continue;
+			}
+			Complex value = null;
+			if (top.isSymbol()) {
+				Rational exact = top.getSymbolAsRational();
+				if (exact != null) {
+					value = new Complex(exact, Rational.ZERO);
+				} else if (top.isSymbol("i")) {
+					value = I;
+				} else {
+					return null;
+				}
+			} else if (top.isUnary()) {
+				Complex child = values.get(top.getChild());
+				if (child == null) {
+					stack.push(top.getChild());
+					continue;
+				}
+				switch (top.getType()) {
+				case NODE_PLUS:
+					value = child;
+					break;
+				case NODE_MINUS:
+					value = child.negate();
+					break;
+				default:
+					return null;
+				}
+			} else {
+				Complex left = values.get(top.getLeft());
+				Complex right = values.get(top.getRight());
+				if (left == null || right == null) {
+					if (right == null) {
+						stack.push(top.getRight());
+					}
+					if (left == null) {
+						stack.push(top.getLeft());
+					}
+					continue;
+				}
+				switch (top.getType()) {
+				case NODE_ADD:
+					value = left.add(right);
+					break;
+				case NODE_SUBTRACT:
+					value = left.subtract(right);
+					break;
+				case NODE_MULTIPLY:
+					value = left.multiply(right);
+					break;
+				case NODE_DIVIDE:
+					value = left.divide(right);
+					break;
+				case NODE_EXPONENTIATE:
+					Long exponent = right.imaginary_.signum() == 0 ? right.real_.longValue() : null;
+					value = exponent == null ? null : left.pow(exponent);
+					break;
+				default:
+					break;
+				}
+				if (value == null) {
+					return null; /* a zero divide, a power too large to write out, or not arithmetic */
+				}
+			}
+			values.put(top, value);
+			stack.pop();
+		}
+		return values.get(expression);
+	}
+
+	Complex add(Complex other) {
+		return new Complex(real_.add(other.real_), imaginary_.add(other.imaginary_));
+	}
+
+	Complex subtract(Complex other) {
+		return new Complex(real_.subtract(other.real_), imaginary_.subtract(other.imaginary_));
+	}
+
+	Complex negate() {
+		return new Complex(real_.negate(), imaginary_.negate());
+	}
+
+	Complex multiply(Complex other) {
+		/* (a + bi)(c + di) = (ac - bd) + (ad + bc)i */
+		Rational real = real_.multiply(other.real_).subtract(imaginary_.multiply(other.imaginary_));
+		Rational imaginary = real_.multiply(other.imaginary_).add(imaginary_.multiply(other.real_));
+		return new Complex(real, imaginary);
+	}
+
+	Complex divide(Complex other) {
+		/* (a + bi)/(c + di) = (a + bi)(c - di)/(c^2 + d^2), or null for a zero divide */
+		Rational norm = other.real_.multiply(other.real_).add(other.imaginary_.multiply(other.imaginary_));
+		if (norm.signum() == 0) {
+			return null;
+		}
+		Complex product = multiply(new Complex(other.real_, other.imaginary_.negate()));
+		return new Complex(product.real_.divide(norm), product.imaginary_.divide(norm));
+	}
+
+	Complex pow(long exponent) {
+		/* by repeated squaring, or null when the result would be too large to write out */
+		if ((long)(real_.bitLength() + imaginary_.bitLength()) * Math.abs(exponent) > Simplify.MAX_CONSTANT_BITS) {
+			return null;
+		}
+		Complex base = this;
+		if (exponent < 0) {
+			base = new Complex(Rational.ONE, Rational.ZERO).divide(this);
+			if (base == null) {
+				return null;
+			}
+			exponent = -exponent;
+		}
+		Complex result = new Complex(Rational.ONE, Rational.ZERO);
+		while (exponent != 0) {
+			if ((exponent & 1) != 0) {
+				result = result.multiply(base);
+			}
+			exponent >>= 1;
+			if (exponent != 0) {
+				base = base.multiply(base);
+			}
+		}
+		return result;
+	}
+
+	Expression toExpression() {
+		/* written as a + b*i, with a rational b as p*i/q in the way Simplify writes coefficients. a negative
+		 * b is subtracted from a, or negated on its own, and a negative fraction a is negated, rather than
+		 * either being multiplied by -1 */
+		if (imaginary_.signum() == 0) {
+			return Expression.constant(real_);
+		}
+		List<Expression> factors = new ArrayList<Expression>();
+		factors.add(Expression.symbol("i"));
+		Expression imaginary = Iterator.listProduct(Simplify.scale(imaginary_.abs(), factors));
+		if (real_.signum() == 0) {
+			return imaginary_.signum() < 0 ? Expression.unary(Expression.Type.NODE_MINUS, imaginary) : imaginary;
+		}
+		Expression real = Expression.constant(real_.abs());
+		if (real_.signum() < 0) {
+			real = real_.isInteger() ? Expression.constant(real_) : Expression.unary(Expression.Type.NODE_MINUS, real);
+		}
+		return imaginary_.signum() < 0 ? Expression.subtract(real, imaginary) : Expression.add(real, imaginary);
+	}
+
+	final Rational real_;
+	final Rational imaginary_;
+}
@@ -0,0 +1,480 @@
+package jsolve;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class EGraph {
+	/* equality saturation: expressions that are shown to be equal share an equivalence class, every
+	 * identity is applied to every class at once, and the smallest member of the root class is
+	 * extracted at the end. the result does not depend on the order the identities are tried in */
+	static final int NODE_LIMIT = 20000;
+	static final int ITERATION_LIMIT = 16;
+
+	static class Node {
+		/* an operator applied to classes rather than to expressions */
+		Node(Expression.Type type, String symbol, int[] children) {
+			type_ = type;
+			symbol_ = symbol;
+			children_ = children;
+			int hash = type.hashCode() * 31 + (symbol == null ? 0 : symbol.hashCode());
+			hash_ = hash * 31 + Arrays.hashCode(children);
+		}
+
+		public int hashCode() {
+			return hash_;
+		}
+
+		public boolean equals(Object object) {
+			if (!(object instanceof Node)) {
+				return false;
+			}
+			Node other = (Node)object;
+			if (type_ != other.type_ || !Arrays.equals(children_, other.children_)) {
+				return false;
+			}
+			return symbol_ == null ? other.symbol_ == null : symbol_.equals(other.symbol_);
+		}
+
+		final Expression.Type type_;
+		final String symbol_;
+		final int[] children_;
+		final int hash_;
+	}
+
+	static class Pattern {
+		/* one side of an identity, symbols that start with an underscore match any class */
+		Pattern(Expression expression, List<String> names) {
+			type_ = expression.getType();
+			symbol_ = expression.getSymbol();
+			value_ = expression.isNumber() ? expression.getSymbolAsRational() : null;
+			if (Rule.isPlaceholder(expression)) {
+				int slot = names.indexOf(symbol_);
+				if (slot < 0) {
+					slot = names.size();
+					names.add(symbol_);
+				}
+				slot_ = slot;
+				children_ = new Pattern[0];
+			} else if (expression.isUnary()) {
+				slot_ = -1;
+				children_ = new Pattern[] {new Pattern(expression.getChild(), names)};
+			} else if (expression.isBinary()) {
+				slot_ = -1;
+				children_ = new Pattern[] {new Pattern(expression.getLeft(), names), new Pattern(expression.getRight(), names)};
+			} else {
+				slot_ = -1;
+				children_ = new Pattern[0];
+			}
+		}
+
+		final Expression.Type type_;
+		final String symbol_;
+		final Rational value_;
+		final int slot_;
+		final Pattern[] children_;
+	}
+
+	static class Identity {
+		Identity(String lhs, String rhs) {
+			List<String> names = new ArrayList<String>();
+			lhs_ = new Pattern(Parser.parse(lhs), names);
+			rhs_ = new Pattern(Parser.parse(rhs), names);
+			slots_ = names.size();
+		}
+
+		final Pattern lhs_;
+		final Pattern rhs_;
+		final int slots_;
+	}
+
+	static final Identity[] identities = {
+		/* reordering sums and products */
+		new Identity("_a + _b", "_b + _a"),
+		new Identity("_a * _b", "_b * _a"),
+		new Identity("(_a + _b) + _c", "_a + (_b + _c)"),
+		new Identity("_a + (_b + _c)", "(_a + _b) + _c"),
+		new Identity("(_a * _b) * _c", "_a * (_b * _c)"),
+		new Identity("_a * (_b * _c)", "(_a * _b) * _c"),
+		new Identity("(_a + _b) - _c", "_a + (_b - _c)"),
+		new Identity("_a + (_b - _c)", "(_a + _b) - _c"),
+		new Identity("(_a - _b) + _c", "(_a + _c) - _b"),
+		new Identity("_a - (_b + _c)", "(_a - _b) - _c"),
+		new Identity("(_a - _b) - _c", "_a - (_b + _c)"),
+		new Identity("(_a / _b) * _c", "(_a * _c) / _b"),
+		new Identity("(_a / _b) / _c", "_a / (_b * _c)"),
+		/* units and zeros */
+		new Identity("_a + 0", "_a"),
+		new Identity("_a - 0", "_a"),
+		new Identity("_a - _a", "0"),
+		new Identity("_a * 1", "_a"),
+		new Identity("_a * 0", "0"),
+		new Identity("_a / 1", "_a"),
+		new Identity("_a ^ 1", "_a"),
+		new Identity("_a ^ 0", "1"),
+		/* collecting like terms and factors */
+		new Identity("_a + _a", "2 * _a"),
+		new Identity("_a * _c + _b * _c", "(_a + _b) * _c"),
+		new Identity("_a * _c - _b * _c", "(_a - _b) * _c"),
+		new Identity("_a * _b + _b", "(_a + 1) * _b"),
+		new Identity("_a * _b - _b", "(_a - 1) * _b"),
+		new Identity("_a / _c + _b / _c", "(_a + _b) / _c"),
+		new Identity("_a / _c - _b / _c", "(_a - _b) / _c"),
+		new Identity("_a * _a", "_a ^ 2"),
+		new Identity("_a ^ _b * _a", "_a ^ (_b + 1)"),
+		new Identity("_a ^ _b * _a ^ _c", "_a ^ (_b + _c)"),
+		/* expanding products */
+		new Identity("_a ^ 2", "_a * _a"),
+		new Identity("_a * (_b + _c)", "_a * _b + _a * _c"),
+		new Identity("_a * (_b - _c)", "_a * _b - _a * _c"),
+	};
+
+	EGraph(int nodeLimit, int iterationLimit) {
+		nodeLimit_ = nodeLimit;
+		iterationLimit_ = iterationLimit;
+	}
+
+	static Expression simplify(Expression expression, int nodeLimit, int iterationLimit) {
+		EGraph graph = new EGraph(nodeLimit, iterationLimit);
+		int root = graph.add(expression);
+		graph.saturate();
+		return graph.extract(root);
+	}
+
+	int add(Expression expression) {
+		/* add every subexpression, operands first, returning the class of the whole */
+		Map<Expression, Integer> added = new IdentityHashMap<Expression, Integer>();
+		Deque<Expression> stack = new ArrayDeque<Expression>();
+		stack.push(expression);
+		while (!stack.isEmpty()) {
+			Expression top = stack.peek();
+			if (added.containsKey(top)) {
+				stack.pop();
+				continue;
+			}
+			Expression[] operands = top.isUnary() ? new Expression[] {top.getChild()}
+					: top.isBinary() ? new Expression[] {top.getLeft(), top.getRight()} : new Expression[0];
+			int[] children = new int[operands.length];
+			boolean ready = true;
+			for (int i = operands.length - 1; i >= 0; --i) {
+				Integer child = added.get(operands[i]);
+				if (child == null) {
+					stack.push(operands[i]);
+					ready = false;
+				} else {
+					children[i] = child;
+				}
+			}
+			if (ready) {
+				stack.pop();
+				added.put(top, add(new Node(top.getType(), top.getSymbol(), children)));
+			}
+		}
+		return find(added.get(expression));
+	}
+
+	int add(Node node) {
+		node = canonical(node);
+		Integer existing = memo_.get(node);
+		if (existing != null) {
+			return find(existing);
+		}
+		int id = parents_.size();
+		parents_.add(id);
+		List<Node> nodes = new ArrayList<Node>();
+		nodes.add(node);
+		classes_.add(nodes);
+		Rational constant = constant(node);
+		constants_.add(constant);
+		memo_.put(node, id);
+		++size_;
+		if (constant != null && node.children_.length != 0) {
+			union(id, add(Expression.constant(constant))); /* give a folded constant its own leaf */
+		}
+		return find(id);
+	}
+
+	int find(int id) {
+		int root = id;
+		while (parents_.get(root) != root) {
+			root = parents_.get(root);
+		}
+		while (parents_.get(id) != root) { /* compress the path */
+			int next = parents_.get(id);
+			parents_.set(id, root);
+			id = next;
+		}
+		return root;
+	}
+
+	boolean union(int a, int b) {
+		a = find(a);
+		b = find(b);
+		if (a == b) {
+			return false;
+		}
+		int root = Math.min(a, b); /* the older class survives, which keeps extraction stable */
+		int other = Math.max(a, b);
+		parents_.set(other, root);
+		classes_.get(root).addAll(classes_.get(other));
+		classes_.set(other, null);
+		if (constants_.get(root) == null) {
+			constants_.set(root, constants_.get(other));
+		}
+		return true;
+	}
+
+	void saturate() {
+		for (int iteration = 0; iteration < iterationLimit_; ++iteration) {
+			/* find every match against the graph as it stands, then apply them all */
+			List<Integer> matchedClasses = new ArrayList<Integer>();
+			List<Identity> matchedIdentities = new ArrayList<Identity>();
+			List<int[]> matchedBindings = new ArrayList<int[]>();
+			for (Identity identity : identities) {
+				for (int id = 0; id < classes_.size() && matchedClasses.size() < nodeLimit_; ++id) {
+					if (classes_.get(id) == null) {
+						continue;
+					}
+					int[] bindings = new int[identity.slots_];
+					Arrays.fill(bindings, -1);
+					for (int[] match : match(identity.lhs_, id, bindings)) {
+						matchedClasses.add(id);
+						matchedIdentities.add(identity);
+						matchedBindings.add(match);
+					}
+				}
+			}
+			boolean changed = false;
+			for (int i = 0; i < matchedClasses.size() && size_ < nodeLimit_; ++i) {
+				int result = instantiate(matchedIdentities.get(i).rhs_, matchedBindings.get(i));
+				changed |= union(matchedClasses.get(i), result);
+			}
+			changed |= rebuild();
+			if (!changed || size_ >= nodeLimit_) {
+				break;
+			}
+		}
+	}
+
+	Expression extract(int root) {
+		/* choose the node of least total size in each class, then build the choice from the root down */
+		int count = classes_.size();
+		long[] costs = new long[count];
+		Node[] best = new Node[count];
+		Arrays.fill(costs, Long.MAX_VALUE);
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (int id = 0; id < count; ++id) {
+				List<Node> nodes = classes_.get(id);
+				if (nodes == null) {
+					continue;
+				}
+				for (Node node : nodes) {
+					long cost = 1;
+					for (int child : node.children_) {
+						long childCost = costs[find(child)];
+						cost = childCost == Long.MAX_VALUE ? Long.MAX_VALUE : cost + childCost;
+						if (cost == Long.MAX_VALUE) {
+							break;
+						}
+					}
+					if (cost < costs[id]) {
+						costs[id] = cost;
+						best[id] = node;
+						changed = true;
+					}
+				}
+			}
+		}
+		Map<Integer, Expression> built = new HashMap<Integer, Expression>();
+		Deque<Integer> stack = new ArrayDeque<Integer>();
+		stack.push(find(root));
+		while (!stack.isEmpty()) {
+			int id = stack.peek();
+			if (built.containsKey(id)) {
+				stack.pop();
+				continue;
+			}
+			Node node = best[id];
+			boolean ready = true;
+			for (int child : node.children_) {
+				if (!built.containsKey(find(child))) {
+					stack.push(find(child));
+					ready = false;
+				}
+			}
+			if (!ready) {
+				continue;
+			}
+			stack.pop();
+			if (node.children_.length == 0) {
+				built.put(id, Expression.symbol(node.symbol_));
+			} else if (node.children_.length == 1) {
+				built.put(id, Expression.unary(node.type_, built.get(find(node.children_[0]))));
+			} else {
+				built.put(id, Expression.binary(node.type_, built.get(find(node.children_[0])), built.get(find(node.children_[1]))));
+			}
+		}
+		return built.get(find(root));
+	}
+
+	private List<int[]> match(Pattern pattern, int id, int[] bindings) {
+		/* every way the pattern can match a member of the class, the patterns are only a few levels deep */
+		id = find(id);
+		List<int[]> matches = new ArrayList<int[]>();
+		if (pattern.slot_ >= 0) {
+			if (bindings[pattern.slot_] < 0) {
+				int[] bound = bindings.clone();
+				bound[pattern.slot_] = id;
+				matches.add(bound);
+			} else if (find(bindings[pattern.slot_]) == id) {
+				matches.add(bindings);
+			}
+			return matches;
+		}
+		if (pattern.value_ != null) {
+			if (pattern.value_.equals(constants_.get(id))) {
+				matches.add(bindings);
+			}
+			return matches;
+		}
+		for (Node node : classes_.get(id)) {
+			if (node.type_ != pattern.type_ || node.children_.length != pattern.children_.length) {
+				continue;
+			}
+			if (pattern.symbol_ != null && !pattern.symbol_.equals(node.symbol_)) {
+				continue;
+			}
+			List<int[]> partial = new ArrayList<int[]>();
+			partial.add(bindings);
+			for (int i = 0; i < node.children_.length && !partial.isEmpty(); ++i) {
+				List<int[]> next = new ArrayList<int[]>();
+				for (int[] binding : partial) {
+					next.addAll(match(pattern.children_[i], node.children_[i], binding));
+				}
+				partial = next;
+			}
+			matches.addAll(partial);
+		}
+		return matches;
+	}
+
+	private int instantiate(Pattern pattern, int[] bindings) {
+		if (pattern.slot_ >= 0) {
+			return find(bindings[pattern.slot_]);
+		}
+		int[] children = new int[pattern.children_.length];
+		for (int i = 0; i < children.length; ++i) {
+			children[i] = instantiate(pattern.children_[i], bindings);
+		}
+		return add(new Node(pattern.type_, pattern.symbol_, children));
+	}
+
+	private boolean rebuild() {
+		/* restore the invariant that equal nodes belong to one class, merging classes until it holds */
+		boolean changed = false;
+		boolean merged = true;
+		while (merged) {
+			merged = false;
+			memo_.clear();
+			List<int[]> unions = new ArrayList<int[]>();
+			List<Rational> folded = new ArrayList<Rational>();
+			List<Integer> foldedClasses = new ArrayList<Integer>();
+			for (int id = 0; id < classes_.size(); ++id) {
+				List<Node> nodes = classes_.get(id);
+				if (nodes == null) {
+					continue;
+				}
+				List<Node> unique = new ArrayList<Node>();
+				for (Node node : nodes) {
+					node = canonical(node);
+					Integer other = memo_.get(node);
+					if (other == null) {
+						memo_.put(node, id);
+						unique.add(node);
+					} else if (other != id) {
+						unions.add(new int[] {other, id});
+					}
+					Rational constant = constant(node);
+					if (constant != null && constants_.get(id) == null) {
+						folded.add(constant);
+						foldedClasses.add(id);
+					}
+				}
+				classes_.set(id, unique);
+			}
+			for (int[] pair : unions) {
+				merged |= union(pair[0], pair[1]);
+			}
+			for (int i = 0; i < folded.size(); ++i) {
+				int id = find(foldedClasses.get(i));
+				if (constants_.get(id) == null) {
+					constants_.set(id, folded.get(i));
+					merged |= union(id, add(Expression.constant(folded.get(i))));
+				}
+			}
+			changed |= merged;
+		}
+		return changed;
+	}
+
+	private Node canonical(Node node) {
+		int[] children = new int[node.children_.length];
+		boolean same = true;
+		for (int i = 0; i < children.length; ++i) {
+			children[i] = find(node.children_[i]);
+			same &= children[i] == node.children_[i];
+		}
+		return same ? node : new Node(node.type_, node.symbol_, children);
+	}
+
+	private Rational constant(Node node) {
+		/* the exact value of a node whose operands are all known exactly, or null */
+		if (node.type_ == Expression.Type.NODE_NUMBER) {
+			return Rational.parse(node.symbol_);
+		}
+		Rational[] values = new Rational[node.children_.length];
+		for (int i = 0; i < values.length; ++i) {
+			values[i] = constants_.get(find(node.children_[i]));
+			if (values[i] == null) {
+				return null;
+			}
+		}
+		switch (node.type_) {
+		case NODE_ADD:
+			return values[0].add(values[1]);
+		case NODE_SUBTRACT:
+			return values[0].subtract(values[1]);
+		case NODE_MULTIPLY:
+			return values[0].multiply(values[1]);
+		case NODE_DIVIDE:
+			return values[0].divide(values[1]);
+		case NODE_EXPONENTIATE:
+			Long exponent = values[1].longValue();
+			if (exponent == null || (long)values[0].bitLength() * Math.abs(exponent) > Simplify.MAX_CONSTANT_BITS) {
+				return null;
+			}
+			return values[0].pow(exponent);
+		case NODE_PLUS:
+			return values[0];
+		case NODE_MINUS:
+			return values[0].negate();
+		default:
+			return null;
+		}
+	}
+
+	private final int nodeLimit_;
+	private final int iterationLimit_;
+	private final List<Integer> parents_ = new ArrayList<Integer>();
+	private final List<List<Node>> classes_ = new ArrayList<List<Node>>();
+	private final List<Rational> constants_ = new ArrayList<Rational>();
+	private final Map<Node, Integer> memo_ = new HashMap<Node, Integer>();
+	private int size_;
+}
@@ -4,18 +4,77 @@ import java.util.ArrayList;
 import java.util.List;
 
 public class Expander {
+	static final int EXPAND_LIMIT = 5; /* integer powers of sums below this are multiplied out */
+	static final int TERM_LIMIT = 10000; /* larger expansions are left to the rewrites below */
+
 	static Expression expand(Expression expression) {
-		Expression result = expand(expression, "x");
+		SparsePolynomial.Variables atoms = new SparsePolynomial.Variables();
+		SparsePolynomial polynomial = toPolynomial(expression, null, atoms);
+		if (polynomial != null) {
+			return polynomial.toExpression(atoms);
+		}
+		Expression result = distribute(expression, "x");
 		List<String> variables = Substitution.getSymbols(expression);
 		for (String variable : variables) {
-			result = expand(result, variable);
+			result = distribute(result, variable);
 		}
 		return result;
 	}
 	
 	static Expression expand(Expression expression, String variable) {
-		/* iterate while the expression keeps changing */
-		String hash = Canonicalizer.toString(expression);
+		SparsePolynomial.Variables atoms = new SparsePolynomial.Variables();
+		SparsePolynomial polynomial = toPolynomial(expression, variable, atoms);
+		if (polynomial != null) {
+			return polynomial.toExpression(atoms);
+		}
+		return distribute(expression, variable);
+	}
+
+	static SparsePolynomial toPolynomial(Expression expression, String variable, SparsePolynomial.Variables variables) {
+		/* multiply out every sum that contains the variable (any sum with a symbol if it is null) as a polynomial whose
+		 * variables are the factors that are left alone. null if the expansion grows past TERM_LIMIT */
+		SparsePolynomial sum = new SparsePolynomial();
+		for (Iterator.Terms terms = new Iterator.Terms(expression); terms.next();) {
+			SparsePolynomial product = SparsePolynomial.constant(terms.negative_ ? Rational.ONE.negate() : Rational.ONE);
+			for (Iterator.Factors factors = new Iterator.Factors(terms.term_); factors.next();) {
+				SparsePolynomial factor = null;
+				Rational value = factors.factor_.getSymbolAsRational();
+				Expression base = factors.base_;
+				if (value != null) {
+					value = factors.inverse_ ? value.reciprocal() : value;
+					if (value == null) {
+						return null; /* zero divide */
+					}
+					factor = SparsePolynomial.constant(value);
+				} else if (factors.inverse_ || factors.multiplicity_ < 1 || factors.multiplicity_ > SparsePolynomial.MAX_DEGREE) {
+					factor = SparsePolynomial.variable(variables.indexOf(factors.getFactor()));
+				} else if (base.getType().equals(Expression.Type.NODE_ADD) || base.getType().equals(Expression.Type.NODE_SUBTRACT)) {
+					boolean expand = variable == null ? !base.getVariables().isEmpty() : base.contains(variable);
+					if (factors.multiplicity_ < EXPAND_LIMIT && expand) {
+						factor = toPolynomial(base, variable, variables);
+						factor = factor == null ? null : factor.pow(factors.multiplicity_);
+					} else {
+						factor = SparsePolynomial.variable(variables.indexOf(factors.factor_));
+					}
+				} else {
+					factor = SparsePolynomial.variable(variables.indexOf(base)).pow(factors.multiplicity_);
+				}
+				product = factor == null ? null : product.multiply(factor);
+				if (product == null || product.size() > TERM_LIMIT) {
+					return null;
+				}
+			}
+			sum.addAll(product);
+			if (sum.size() > TERM_LIMIT) {
+				return null;
+			}
+		}
+		return sum;
+	}
+
+	static Expression distribute(Expression expression, String variable) {
+		/* one factor at a time, iterating while the expression keeps changing */
+		Fixpoint fixpoint = new Fixpoint(expression);
 		while (true) {
 			List<Expression> factors = Iterator.getFactors(expression, 5);
 			for (int i = 0; i < factors.size(); ++i) {
@@ -30,10 +89,10 @@ public class Expander {
 					Expression result = null;
 					List<Expression> newTerms = new ArrayList<Expression>();
 					for (Expression term : terms) {
-						newTerms.add(expand(term, variable));
+						newTerms.add(distribute(term, variable));
 					}
 					result = Iterator.listSum(newTerms);
-					if (Canonicalizer.compare(result, factor)) {
+					if (result.equals(factor)) {
 						break;
 					}
 					expression = result;
@@ -56,11 +115,10 @@ public class Expander {
 				}
 				break;
 			}
-			String newHash = Canonicalizer.toString(expression);
-			if (hash.equals(newHash)) {
+			if (!fixpoint.next(expression)) {
+				expression = fixpoint.getResult();
 				break;
 			}
-			hash = newHash;
 		}
 		return expression;
 	}
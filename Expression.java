@@ -1,8 +1,23 @@
 package jsolve;
 
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
 public class Expression {
 	enum Type {
 		NODE_SYMBOL,
+		NODE_NUMBER,
 		NODE_EQUALS,
 		NODE_ADD,
 		NODE_SUBTRACT,
@@ -19,23 +34,125 @@ public class Expression {
 		NODE_LAMBERTW
 	}
 
-	Expression(Type type) {
+	private Expression(Type type, Expression left, Expression right, Expression child, String symbol) {
 		type_ = type;
-	}
-	
-	Expression(String symbol) {
-		type_ = Type.NODE_SYMBOL;
+		left_ = left;
+		right_ = right;
+		child_ = child;
 		symbol_ = symbol;
+		if (type == Type.NODE_NUMBER) {
+			exact_ = Rational.parse(symbol);
+			value_ = exact_ != null ? exact_.doubleValue() : Double.parseDouble(symbol);
+			integer_ = exact_ != null ? exact_.longValue() : null;
+		} else {
+			exact_ = null;
+			value_ = null;
+			integer_ = null;
+		}
+		if (type == Type.NODE_SYMBOL) {
+			variables_ = new BitSet();
+			variables_.set(symbols.id(symbol));
+		} else if (type == Type.NODE_NUMBER) {
+			variables_ = NO_VARIABLES;
+		} else if (child != null) {
+			variables_ = child.variables_;
+		} else {
+			variables_ = union(left.variables_, right.variables_);
+		}
+		if (child != null) {
+			size_ = child.size_ == Integer.MAX_VALUE ? child.size_ : child.size_ + 1;
+		} else if (left != null) {
+			size_ = (int)Math.min((long)left.size_ + right.size_ + 1, Integer.MAX_VALUE);
+		} else {
+			size_ = 1;
+		}
 	}
-	
-	Expression(Double constant) {
-		type_ = Type.NODE_SYMBOL;
+
+	private static BitSet union(BitSet a, BitSet b) {
+		/* the sets are never modified once built, so share one when it already covers the other */
+		if (b.isEmpty() || a == b) {
+			return a;
+		} else if (a.isEmpty()) {
+			return b;
+		}
+		BitSet union = (BitSet)a.clone();
+		union.or(b);
+		if (union.equals(a)) {
+			return a;
+		} else if (union.equals(b)) {
+			return b;
+		}
+		return union;
+	}
+
+	static Expression symbol(String symbol) {
+		Type type = isNumber(symbol) ? Type.NODE_NUMBER : Type.NODE_SYMBOL;
+		return interner.intern(type, null, null, null, symbol);
+	}
+
+	static boolean isNumber(String symbol) {
+		/* decimal numbers, e.g. -12, 1.5 or 2.5E-4, along with the special values of a double */
+		int i = symbol.startsWith("-") ? 1 : 0;
+		String rest = symbol.substring(i);
+		if (rest.equals("NaN") || rest.equals("Infinity")) {
+			return true;
+		}
+		int digits = 0;
+		while (i < symbol.length() && Character.isDigit(symbol.charAt(i))) {
+			++i;
+			++digits;
+		}
+		if (i < symbol.length() && symbol.charAt(i) == '.') {
+			++i;
+			while (i < symbol.length() && Character.isDigit(symbol.charAt(i))) {
+				++i;
+				++digits;
+			}
+		}
+		if (digits == 0) {
+			return false;
+		}
+		if (i < symbol.length() && (symbol.charAt(i) == 'e' || symbol.charAt(i) == 'E')) {
+			++i;
+			if (i < symbol.length() && (symbol.charAt(i) == '-' || symbol.charAt(i) == '+')) {
+				++i;
+			}
+			int exponentDigits = 0;
+			while (i < symbol.length() && Character.isDigit(symbol.charAt(i))) {
+				++i;
+				++exponentDigits;
+			}
+			if (exponentDigits == 0) {
+				return false;
+			}
+		}
+		return i == symbol.length();
+	}
+
+	static Expression constant(Double constant) {
 		Integer integer = constant.intValue();
 		if (constant.equals(new Double(integer))) {
-			symbol_ = integer.toString();
+			return symbol(integer.toString());
 		} else {
-			symbol_ = constant.toString();
+			return symbol(constant.toString());
+		}
+	}
+
+	static Expression constant(Rational constant) {
+		/* integers become a single leaf, fractions are written as a quotient of integers */
+		if (constant.isInteger()) {
+			return symbol(constant.toString());
 		}
+		Expression quotient = divide(symbol(constant.getNumerator().abs().toString()), symbol(constant.getDenominator().toString()));
+		return constant.signum() < 0 ? negate(quotient) : quotient;
+	}
+
+	static Expression unary(Type type, Expression child) {
+		return interner.intern(type, null, null, child, null);
+	}
+
+	static Expression binary(Type type, Expression left, Expression right) {
+		return interner.intern(type, left, right, null, null);
 	}
 
 	Expression getLeft() {
@@ -46,12 +163,17 @@ public class Expression {
 		return type_;
 	}
 	
-	void setType(Type type) {
-		type_ = type;
+	boolean isSymbol() {
+		return type_ == Type.NODE_SYMBOL || type_ == Type.NODE_NUMBER;
 	}
 	
-	boolean isSymbol() {
-		return type_ == Type.NODE_SYMBOL;
+	boolean isSymbol(String name) {
+		/* whether this is the named variable or constant, without printing the expression */
+		return type_ == Type.NODE_SYMBOL && symbol_.equals(name);
+	}
+
+	boolean isNumber() {
+		return type_ == Type.NODE_NUMBER;
 	}
 	
 	boolean isUnary() {
@@ -62,273 +184,633 @@ public class Expression {
 		return !isSymbol() && !isUnary();
 	}
 
-	void setLeft(Expression left) {
-		if (left != null) {
-			left_ = left.copy();
-		} else {
-			left_ = null;
-		}
-	}
-	
 	Expression getRight() {
 		return right_;
 	}
 	
-	void setRight(Expression right) {
-		if (right != null) {
-			right_ = right.copy();
-		} else {
-			right_ = null;
-		}
-	}
-	
 	Expression getChild() {
 		return child_;
 	}
 	
-	void setChild(Expression child) {
-		if (child != null) {
-			child_ = child.copy();
-		} else {
-			child_ = null;
-		}
-	}
-	
 	String getSymbol() {
 		return symbol_;
 	}
 	
-	void setSymbol(String symbol) {
-		symbol_ = symbol;
+	public String toString() {
+		/* print with an explicit stack, so deep expressions cannot exhaust the call stack */
+		StringBuilder builder = new StringBuilder();
+		Deque<Expression> nodes = new ArrayDeque<Expression>();
+		Deque<Integer> stages = new ArrayDeque<Integer>();
+		nodes.push(this);
+		stages.push(0);
+		while (!nodes.isEmpty()) {
+			Expression node = nodes.peek();
+			int stage = stages.pop();
+			stages.push(stage + 1);
+			Expression operand = null;
+			if (node.isSymbol()) {
+				Double value = node.getSymbolAsFloat();
+				if (value != null && value < 0) {
+					builder.append("(").append(node.getSymbol()).append(")");
+				} else {
+					builder.append(node.getSymbol());
+				}
+				nodes.pop();
+				stages.pop();
+				continue;
+			} else if (stage == 0) {
+				builder.append(opening(node.getType()));
+				operand = node.isUnary() ? node.getChild() : node.getLeft();
+			} else if (stage == 1 && node.isBinary()) {
+				builder.append(separator(node.getType()));
+				operand = node.getRight();
+			} else {
+				builder.append(closing(node.getType()));
+				nodes.pop();
+				stages.pop();
+			}
+			if (operand != null) {
+				nodes.push(operand);
+				stages.push(0);
+			}
+		}
+		return builder.toString();
 	}
-	
-	Expression copy() {
-		Expression duplicate = new Expression(type_);
-		if (child_ != null) {
-			duplicate.child_ = child_.copy();
+
+	static String opening(Type type) {
+		/* the text printed before the first operand of an operator */
+		switch (type) {
+		case NODE_PLUS:
+			return "(+";
+		case NODE_MINUS:
+			return "(-";
+		case NODE_FACTORIAL_INVERSE:
+			return "InverseFactorial(";
+		case NODE_SINE:
+			return "Sin(";
+		case NODE_COSINE:
+			return "Cos(";
+		case NODE_LAMBERTW:
+			return "LambertW(";
+		case NODE_LOGARITHM:
+			return "(log_(";
+		case NODE_EQUALS:
+		case NODE_ADD:
+		case NODE_SUBTRACT:
+		case NODE_MULTIPLY:
+		case NODE_DIVIDE:
+		case NODE_EXPONENTIATE:
+		case NODE_FACTORIAL:
+			return "(";
+		default:
+			return "(?";
 		}
-		if (left_ != null) {
-			duplicate.left_ = left_.copy();
+	}
+
+	static String separator(Type type) {
+		/* the text printed between the operands of a binary operator */
+		switch (type) {
+		case NODE_EQUALS:
+			return "=";
+		case NODE_ADD:
+			return "+";
+		case NODE_SUBTRACT:
+			return "-";
+		case NODE_MULTIPLY:
+			return "*";
+		case NODE_DIVIDE:
+			return "/";
+		case NODE_EXPONENTIATE:
+			return "^";
+		case NODE_LOGARITHM:
+			return ")(";
+		default:
+			return "?";
 		}
-		if (right_ != null) {
-			duplicate.right_ = right_.copy();
+	}
+
+	static String closing(Type type) {
+		/* the text printed after the last operand of an operator */
+		switch (type) {
+		case NODE_FACTORIAL:
+			return "!)";
+		case NODE_LOGARITHM:
+			return "))";
+		default:
+			return ")";
 		}
-		duplicate.setSymbol(getSymbol());
-		return duplicate;
 	}
 	
-	public String toString() {
-		if (isSymbol()) {
-			Double value = getSymbolAsFloat();
-			if (value != null && value < 0) {
-				return "(" + getSymbol() + ")";
-			} else {
-				return getSymbol();
-			}
-		} else if (isUnary()) {
-			String child = getChild().toString();
-			switch (getType()) {
-			case NODE_PLUS:
-				return "(+" + child + ")";
-			case NODE_MINUS:
-				return "(-" + child + ")";
-			case NODE_FACTORIAL:
-				return "(" + child + "!)";
-			case NODE_FACTORIAL_INVERSE:
-				return "InverseFactorial(" + child + ")";
-			case NODE_SINE:
-				return "Sin(" + child + ")";
-			case NODE_COSINE:
-				return "Cos(" + child + ")";
-			case NODE_LAMBERTW:
-				return "LambertW(" + child + ")";
-			default:
-				return "(?" + child + ")";
-			}
-		} else {
-			String left = getLeft().toString();
-			String right = getRight().toString();
-			switch (getType()) {
-			case NODE_EQUALS:
-				return "(" + left + "=" + right + ")";
-			case NODE_ADD:
-				return "(" + left + "+" + right + ")";
-			case NODE_SUBTRACT:
-				return "(" + left + "-" + right + ")";
-			case NODE_MULTIPLY:
-				return "(" + left + "*" + right + ")";
-			case NODE_DIVIDE:
-				return "(" + left + "/" + right + ")";
-			case NODE_EXPONENTIATE:
-				return "(" + left + "^" + right + ")";
-			case NODE_LOGARITHM:
-				return "(log_(" + left + ")(" + right + "))";
-			default:
-				return "(" + left + "?" + right + ")";
-			}
-		}
+	int size() {
+		/* the number of nodes in the tree, counting shared subexpressions each time they are used */
+		return size_;
 	}
 	
 	boolean contains(String symbol) {
-		if (isBinary()) {
-			return left_.contains(symbol) || right_.contains(symbol);
-		} else if (isUnary()) {
-			return child_.contains(symbol);
-		} else if (symbol_.equals(symbol)) {
-			return true;
+		/* whether a variable occurs anywhere in the expression */
+		Integer id = symbols.find(symbol);
+		return id != null && variables_.get(id);
+	}
+
+	List<String> getVariables() {
+		/* the variables used in the expression, each listed once */
+		List<String> variables = new ArrayList<String>();
+		for (int id = variables_.nextSetBit(0); id >= 0; id = variables_.nextSetBit(id + 1)) {
+			variables.add(symbols.name(id));
 		}
-		return false;
+		return variables;
 	}
 	
 	Long getSymbolAsInteger() {
-		if (isSymbol()) {
-			try {
-				Long value = Long.parseLong(getSymbol());
-				return value;
-			} catch (NumberFormatException e) {
-				return null;
-			}
-		}
-		return null;
+		return integer_;
 	}
 	
 	Double getSymbolAsFloat() {
-		if (isSymbol()) {
-			try {
-				Double value = Double.parseDouble(getSymbol());
-				return value;
-			} catch (NumberFormatException e) {
-				return null;
-			}
+		return value_;
+	}
+
+	Expression getMagnitude() {
+		/* the absolute value of a number */
+		if (exact_ != null) {
+			return constant(exact_.abs());
 		}
-		return null;
+		return constant(Math.abs(value_));
+	}
+
+	Rational getSymbolAsRational() {
+		/* the exact value of an integer literal, null for decimals and non-numbers */
+		return exact_;
 	}
 	
 	boolean isOne() {
-		if (isSymbol()) {
-			try {
-				Double value = Double.parseDouble(getSymbol());
-				if (value == 1.0) {
-					return true;
+		return value_ != null && value_ == 1.0;
+	}
+	
+	boolean isZero() {
+		return value_ != null && value_ == 0.0;
+	}
+	
+	boolean isDegenerate() {
+		/* search every node with an explicit stack, visiting shared subexpressions once */
+		Set<Expression> visited = Collections.newSetFromMap(new IdentityHashMap<Expression, Boolean>());
+		Deque<Expression> stack = new ArrayDeque<Expression>();
+		stack.push(this);
+		while (!stack.isEmpty()) {
+			Expression node = stack.pop();
+			if (!visited.add(node)) {
+				continue;
+			}
+			if (node.isBinary()) {
+				if (Simplify.getDenominator(node).isZero()) {
+					return true; /* zero divide */
 				}
-			} catch (NumberFormatException e) {
-				return false;
+				if (node.type_.equals(Expression.Type.NODE_LOGARITHM)) {
+					if (node.getRight().isZero()) {
+						return true; /* log_n(0) */
+					}
+				}
+				stack.push(node.getRight());
+				stack.push(node.getLeft());
+			} else if (node.isUnary()) {
+				stack.push(node.getChild());
 			}
 		}
 		return false;
 	}
-	
-	boolean isZero() {
+
+	static class Operand {
+		/* a term of a sum or a factor of a product, as seen by equals() and hashCode() */
+		Operand(Expression expression, boolean inverse) {
+			expression_ = expression;
+			inverse_ = inverse;
+			hash_ = mix(expression.operandHash(), inverse);
+		}
+		Expression expression_;
+		boolean inverse_;
+		int hash_;
+	}
+
+	static class Operands {
+		/* the flattened terms of a sum or factors of a product, found once and kept on the node.
+		 * each operand is stored unsigned, with a flag marking it as subtracted or divided by */
+		Operands(List<Expression> operands, List<Boolean> inverses, int sign, int limit) {
+			operands_ = operands.toArray(new Expression[operands.size()]);
+			inverse_ = new boolean[operands_.length];
+			for (int i = 0; i < inverse_.length; ++i) {
+				inverse_[i] = inverses.get(i);
+			}
+			sign_ = sign;
+			limit_ = limit;
+		}
+		final Expression[] operands_;
+		final boolean[] inverse_;
+		final int sign_;
+		final int limit_;
+	}
+
+	private static int mix(int hash, boolean flag) {
+		hash = (hash ^ (flag ? 0x5bd1e995 : 0)) * 0x9e3779b9;
+		return hash ^ (hash >>> 15);
+	}
+
+	boolean isSum() {
+		return type_ == Type.NODE_ADD || type_ == Type.NODE_SUBTRACT;
+	}
+
+	boolean isProduct() {
+		switch (type_) {
+		case NODE_MULTIPLY:
+		case NODE_DIVIDE:
+			return true;
+		case NODE_EXPONENTIATE:
+			Long exponent = right_.getSymbolAsInteger();
+			return exponent != null && exponent < 0; /* x^-n = 1/x^n */
+		case NODE_NUMBER:
+			return true; /* -2 = (-1)*2 */
+		default:
+			return false;
+		}
+	}
+
+	static void terms(Expression expression, List<Operand> terms) {
+		/* the terms of a sum as Iterator.Terms walks them, marking the ones that are subtracted */
+		for (Iterator.Terms cursor = new Iterator.Terms(expression); cursor.next();) {
+			terms.add(new Operand(cursor.term_, cursor.negative_));
+		}
+	}
+
+	static int factors(Expression expression, List<Operand> factors) {
+		/* the factors of a product as Iterator.Factors walks them, returning the sign of its numeric
+		 * factors. numbers of magnitude one are dropped here, since 1*x and x are the same product */
+		List<Expression> operands = new ArrayList<Expression>();
+		List<Boolean> inverses = new ArrayList<Boolean>();
+		int sign = factors(expression, operands, inverses);
+		for (int i = 0; i < operands.size(); ++i) {
+			factors.add(new Operand(operands.get(i), inverses.get(i)));
+		}
+		return sign;
+	}
+
+	private static int factors(Expression expression, List<Expression> factors, List<Boolean> inverses) {
+		/* as above, without hashing the factors, which lets hashCode() find its operands */
+		Iterator.Factors cursor = new Iterator.Factors(expression);
+		while (cursor.next()) {
+			if (cursor.factor_.isNumber() && Math.abs(cursor.factor_.getSymbolAsFloat()) == 1.0) {
+				continue;
+			}
+			factors.add(cursor.factor_);
+			inverses.add(cursor.inverse_);
+		}
+		return cursor.getSign();
+	}
+
+	List<Expression> operands() {
+		/* the nodes that this node's hash and canonical form are built from */
+		List<Expression> operands = new ArrayList<Expression>();
 		if (isSymbol()) {
-			try {
-				Double value = Double.parseDouble(getSymbol());
-				if (value == 0.0) {
-					return true;
+			return operands;
+		} else if (isProduct()) {
+			factors(this, operands, new ArrayList<Boolean>());
+		} else if (isSum()) {
+			Deque<Expression> stack = new ArrayDeque<Expression>();
+			stack.push(this);
+			while (!stack.isEmpty()) {
+				Expression node = stack.pop();
+				if (node.isSum()) {
+					stack.push(node.right_);
+					stack.push(node.left_);
+				} else if (node.isProduct()) {
+					factors(node, operands, new ArrayList<Boolean>());
+				} else {
+					operands.add(node);
 				}
-			} catch (NumberFormatException e) {
-				return false;
 			}
+		} else if (isUnary()) {
+			operands.add(child_);
+		} else {
+			operands.add(left_);
+			operands.add(right_);
 		}
-		return false;
+		return operands;
 	}
-	
-	boolean isDegenerate() {
-		if (isBinary()) {
-			if (getLeft().isDegenerate()) {
-				return true;
+
+	private int operandHash() {
+		/* numbers appear as operands by magnitude only, their sign belongs to the product */
+		Double value = getSymbolAsFloat();
+		if (value != null) {
+			return Double.hashCode(Math.abs(value));
+		}
+		return hashCode();
+	}
+
+	private static int productHash(int sign, List<Operand> factors) {
+		if (sign > 0 && factors.size() == 1 && !factors.get(0).inverse_) {
+			return factors.get(0).expression_.operandHash(); /* 1*x = x */
+		}
+		int hash = sign > 0 ? 0x3c6ef372 : 0xa54ff53a;
+		for (Operand factor : factors) {
+			hash += factor.hash_;
+		}
+		return hash;
+	}
+
+	private static int termHash(Expression term, boolean negative) {
+		List<Operand> factors = new ArrayList<Operand>();
+		int sign = product(term, factors);
+		return productHash(negative ? -sign : sign, factors);
+	}
+
+	static int product(Expression expression, List<Operand> factors) {
+		/* view any expression as a signed product, x is treated as 1*x */
+		if (expression.isProduct()) {
+			return factors(expression, factors);
+		}
+		factors.add(new Operand(expression, false));
+		return 1;
+	}
+
+	private static List<Operand> sum(Expression expression) {
+		/* flatten a sum, each term hashed together with its sign */
+		List<Operand> terms = new ArrayList<Operand>();
+		terms(expression, terms);
+		for (Operand term : terms) {
+			term.hash_ = termHash(term.expression_, term.inverse_);
+		}
+		return terms;
+	}
+
+	public int hashCode() {
+		/* structural hash, invariant under reordering the terms of a sum or the factors of a product */
+		int hash = hash_;
+		if (hash != 0) {
+			return hash;
+		}
+		/* hash the operands first with an explicit stack, so each node below finds them cached */
+		Deque<Expression> stack = new ArrayDeque<Expression>();
+		stack.push(this);
+		while (!stack.isEmpty()) {
+			Expression node = stack.peek();
+			if (node.hash_ != 0) {
+				stack.pop();
+				continue;
 			}
-			if (getRight().isDegenerate()) {
-				return true;
+			boolean ready = true;
+			for (Expression operand : node.operands()) {
+				if (operand.hash_ == 0) {
+					stack.push(operand);
+					ready = false;
+				}
 			}
-			if (Simplify.getDenominator(this).isZero()) {
-				return true; /* zero divide */
+			if (ready) {
+				stack.pop();
+				node.hash_ = node.computeHash();
 			}
-			if (type_.equals(Expression.Type.NODE_LOGARITHM)) {
-				if (getRight().isZero()) {
-					return true; /* log_n(0) */
-				}
+		}
+		return hash_;
+	}
+
+	private int computeHash() {
+		int hash;
+		if (isProduct()) {
+			List<Operand> factors = new ArrayList<Operand>();
+			int sign = factors(this, factors);
+			hash = productHash(sign, factors);
+		} else if (isSum()) {
+			hash = 0x510e527f;
+			for (Operand term : sum(this)) {
+				hash += mix(term.hash_, false);
 			}
+		} else if (isSymbol()) {
+			hash = symbol_.hashCode();
 		} else if (isUnary()) {
-			if (getChild().isDegenerate()) {
-				return true;
-			}
+			hash = 31 * type_.ordinal() + child_.hashCode();
+		} else {
+			hash = 31 * (31 * type_.ordinal() + left_.hashCode()) + right_.hashCode();
 		}
-		return false;
+		if (hash == 0) {
+			hash = 1;
+		}
+		return hash;
+	}
+
+	public boolean equals(Object object) {
+		/* structural equality, modulo the order of terms and factors */
+		if (this == object) {
+			return true;
+		}
+		if (!(object instanceof Expression)) {
+			return false;
+		}
+		Expression other = (Expression)object;
+		if (!variables_.equals(other.variables_)) {
+			return false; /* cheaper than hashing a long sum, and the terms never cancel */
+		}
+		if (hashCode() != other.hashCode()) {
+			return false;
+		}
+		return Canonicalizer.canonicalize(this) == Canonicalizer.canonicalize(other);
 	}
 
 	static Expression equals(Expression a, Expression b) {
-		Expression result = new Expression(Type.NODE_EQUALS);
-		result.setLeft(a);
-		result.setRight(b);
-		return result;
+		return binary(Type.NODE_EQUALS, a, b);
 	}
 
 	static Expression add(Expression a, Expression b) {
-		Expression result = new Expression(Type.NODE_ADD);
-		result.setLeft(a);
-		result.setRight(b);
-		return result;
+		return binary(Type.NODE_ADD, a, b);
 	}
 	
 	static Expression subtract(Expression a, Expression b) {
-		Expression result = new Expression(Type.NODE_SUBTRACT);
-		result.setLeft(a);
-		result.setRight(b);
-		return result;
+		return binary(Type.NODE_SUBTRACT, a, b);
 	}
 	
 	static Expression multiply(Expression a, Expression b) {
-		Expression result = new Expression(Type.NODE_MULTIPLY);
-		result.setLeft(a);
-		result.setRight(b);
-		return result;
+		return binary(Type.NODE_MULTIPLY, a, b);
 	}
 	
 	static Expression divide(Expression a, Expression b) {
-		Expression result = new Expression(Type.NODE_DIVIDE);
-		result.setLeft(a);
-		result.setRight(b);
-		return result;
+		return binary(Type.NODE_DIVIDE, a, b);
 	}
 	
 	static Expression exponentiate(Expression a, Expression b) {
-		Expression result = new Expression(Type.NODE_EXPONENTIATE);
-		result.setLeft(a);
-		result.setRight(b);
-		return result;
+		return binary(Type.NODE_EXPONENTIATE, a, b);
 	}
 
 	static Expression exponentiate(Expression x) {
 		/* complex exponentiation */
-		Expression cos = new Expression(Expression.Type.NODE_COSINE);
-		cos.setChild(x);
-		Expression sin = new Expression(Expression.Type.NODE_SINE);
-		sin.setChild(x);
-		Expression isin = Expression.multiply(new Expression("i"), sin);
+		Expression cos = unary(Type.NODE_COSINE, x);
+		Expression sin = unary(Type.NODE_SINE, x);
+		Expression isin = Expression.multiply(Expression.symbol("i"), sin);
 		Expression result = Expression.add(cos, isin);
 		return result;
 	}
 	
 	static Expression logarithm(Expression a, Expression b) {
-		Expression result = new Expression(Type.NODE_LOGARITHM);
-		result.setLeft(a);
-		result.setRight(b);
-		return result;
+		return binary(Type.NODE_LOGARITHM, a, b);
 	}
 	
 	static Expression lambertW(Expression x) {
-		Expression result = new Expression(Expression.Type.NODE_LAMBERTW);
-		result.setChild(x);
-		return result;
+		return unary(Type.NODE_LAMBERTW, x);
 	}
 	
 	static Expression negate(Expression x) {
-		return Expression.multiply(new Expression("-1"),  x);
+		return Expression.multiply(Expression.symbol("-1"),  x);
 	}
 
-	Type type_;
-	Expression left_;
-	Expression right_;
-	Expression child_;
-	String symbol_;
+	static class Interner {
+		/* a weak hash set of every live node, so that structurally identical nodes are shared. the set
+		 * is split into stripes by hash, each with its own lock, so threads building different nodes
+		 * rarely wait for each other */
+		static final int STRIPES = 16;
+
+		static class Entry extends WeakReference<Expression> {
+			Entry(Expression expression, int hash, Entry next, ReferenceQueue<Expression> queue) {
+				super(expression, queue);
+				hash_ = hash;
+				next_ = next;
+			}
+			int hash_;
+			Entry next_;
+		}
+
+		static class Stripe {
+			synchronized Expression intern(int hash, Type type, Expression left, Expression right, Expression child, String symbol) {
+				purge();
+				int index = hash & (table_.length - 1);
+				for (Entry entry = table_[index]; entry != null; entry = entry.next_) {
+					if (entry.hash_ != hash) {
+						continue;
+					}
+					Expression node = entry.get();
+					if (node != null && node.type_ == type && node.left_ == left && node.right_ == right
+							&& node.child_ == child && (symbol == null ? node.symbol_ == null : symbol.equals(node.symbol_))) {
+						return node; /* already exists, share it */
+					}
+				}
+				Expression node = new Expression(type, left, right, child, symbol);
+				table_[index] = new Entry(node, hash, table_[index], queue_);
+				if (++size_ > table_.length * 3 / 4) {
+					resize();
+				}
+				return node;
+			}
+
+			private void resize() {
+				Entry[] table = new Entry[table_.length * 2];
+				for (Entry entry : table_) {
+					while (entry != null) {
+						Entry next = entry.next_;
+						int index = entry.hash_ & (table.length - 1);
+						entry.next_ = table[index];
+						table[index] = entry;
+						entry = next;
+					}
+				}
+				table_ = table;
+			}
+
+			private void purge() {
+				/* unlink the entries of nodes that have been garbage collected */
+				for (Object stale = queue_.poll(); stale != null; stale = queue_.poll()) {
+					Entry entry = (Entry)stale;
+					int index = entry.hash_ & (table_.length - 1);
+					Entry previous = null;
+					for (Entry search = table_[index]; search != null; search = search.next_) {
+						if (search == entry) {
+							if (previous == null) {
+								table_[index] = search.next_;
+							} else {
+								previous.next_ = search.next_;
+							}
+							--size_;
+							break;
+						}
+						previous = search;
+					}
+				}
+			}
+
+			Entry[] table_ = new Entry[64];
+			int size_;
+			ReferenceQueue<Expression> queue_ = new ReferenceQueue<Expression>();
+		}
+
+		Interner() {
+			for (int i = 0; i < STRIPES; ++i) {
+				stripes_[i] = new Stripe();
+			}
+		}
+
+		static int hash(Type type, Expression left, Expression right, Expression child, String symbol) {
+			int hash = type.ordinal();
+			hash = 31 * hash + System.identityHashCode(left);
+			hash = 31 * hash + System.identityHashCode(right);
+			hash = 31 * hash + System.identityHashCode(child);
+			hash = 31 * hash + (symbol == null ? 0 : symbol.hashCode());
+			return hash ^ (hash >>> 16);
+		}
+
+		Expression intern(Type type, Expression left, Expression right, Expression child, String symbol) {
+			int hash = hash(type, left, right, child, symbol);
+			/* the stripe is picked by the top bits of a multiplicative hash, the slot within it by the bottom ones */
+			return stripes_[(hash * 0x9E3779B9) >>> 28].intern(hash, type, left, right, child, symbol);
+		}
+
+		private final Stripe[] stripes_ = new Stripe[STRIPES];
+	}
+
+	static class Symbols {
+		/* variable names interned to small integers, so a node can record the variables it uses as a bitset.
+		 * lookups take no lock, only a new name does */
+		int id(String symbol) {
+			Integer id = ids_.get(symbol);
+			if (id != null) {
+				return id;
+			}
+			synchronized (this) {
+				id = ids_.get(symbol);
+				if (id == null) {
+					id = names_.size();
+					names_.add(symbol); /* the name is readable before its id is published */
+					ids_.put(symbol, id);
+				}
+				return id;
+			}
+		}
+
+		Integer find(String symbol) {
+			return ids_.get(symbol);
+		}
+
+		String name(int id) {
+			return names_.get(id);
+		}
+
+		final Map<String, Integer> ids_ = new ConcurrentHashMap<String, Integer>();
+		final List<String> names_ = new CopyOnWriteArrayList<String>();
+	}
+
+	static final BitSet NO_VARIABLES = new BitSet();
+	static final Symbols symbols = new Symbols();
+	static final Interner interner = new Interner();
+
+	final Type type_;
+	final Expression left_;
+	final Expression right_;
+	final Expression child_;
+	final String symbol_;
+	final Rational exact_;
+	final Double value_;
+	final Long integer_;
+	final BitSet variables_;
+	final int size_;
+	int hash_;
+	Expression canonical_;
+	Operands terms_;
+	Operands factors_;
+	Operands expanded_;
+	Expression abs_;
+	Expression normalized_; /* the result of Collector.normalizeExponents on this node */
+	Expression folded_; /* the result of one Simplify.fold pass over this node */
+	Expression constants_; /* the result of Simplify.foldConstants on this node */
+	Expression simplified_; /* the fixpoint Simplify.simplify reaches from this node */
 }
@@ -0,0 +1,73 @@
+package jsolve;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class Fixpoint {
+	/* follows the states of a rewrite loop by their canonical forms. the loop ends when a state
+	 * repeats the one before it, which is a fixed point, or any earlier one, which is a cycle.
+	 * it also ends when the iteration or node budget runs out. in those last cases the smallest
+	 * state seen is used, so a pair of rewrites that undo each other cannot spin forever */
+	static volatile int iterationLimit = 10000;
+	static volatile int nodeLimit = 10000000;
+
+	static final AtomicLong cycles = new AtomicLong();
+	static final AtomicLong iterationLimitsHit = new AtomicLong();
+	static final AtomicLong nodeLimitsHit = new AtomicLong();
+
+	Fixpoint(Expression start) {
+		previous_ = start;
+		smallest_ = start;
+	}
+
+	boolean next(Expression state) {
+		/* record a new state, returning false once the loop should stop */
+		if (canonical_ == null) {
+			canonical_ = Canonicalizer.canonicalize(previous_); /* only needed once the loop makes a change */
+			seen_.add(canonical_);
+		}
+		Expression canonical = Canonicalizer.canonicalize(state);
+		if (canonical == canonical_) {
+			result_ = state;
+			return false;
+		}
+		if (state.size() < smallest_.size()) {
+			smallest_ = state;
+		}
+		if (!seen_.add(canonical)) {
+			cycles.incrementAndGet();
+			result_ = smallest_;
+			return false;
+		}
+		if (++iterations_ >= iterationLimit) {
+			iterationLimitsHit.incrementAndGet();
+			result_ = smallest_;
+			return false;
+		}
+		if (state.size() > nodeLimit) {
+			nodeLimitsHit.incrementAndGet();
+			result_ = smallest_;
+			return false;
+		}
+		previous_ = state;
+		canonical_ = canonical;
+		return true;
+	}
+
+	Expression getResult() {
+		return result_;
+	}
+
+	static String statistics() {
+		return "cycles: " + cycles.get() + ", iteration limits: " + iterationLimitsHit.get() + ", node limits: " + nodeLimitsHit.get();
+	}
+
+	private final Set<Expression> seen_ = Collections.newSetFromMap(new IdentityHashMap<Expression, Boolean>());
+	private Expression previous_;
+	private Expression canonical_;
+	private Expression smallest_;
+	private Expression result_;
+	private int iterations_;
+}
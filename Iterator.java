@@ -1,99 +1,225 @@
 package jsolve;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
 import java.util.List;
 
 public class Iterator {
-	private static void sumIterator(Expression expression, boolean negative, Iterator callback) {
-		switch (expression.getType()) {
-		case NODE_ADD:
-			sumIterator(expression.getLeft(), negative, callback);
-			sumIterator(expression.getRight(), negative, callback);
-			break;
-		case NODE_SUBTRACT:
-			sumIterator(expression.getLeft(), negative, callback);
-			sumIterator(expression.getRight(), !negative, callback);
-			break;
-		default:
-			callback.term(expression, negative);
-			break;
+	static final class Terms {
+		/* walks the terms of a sum in place, the current term is held in term_ with its sign in negative_ */
+		Terms(Expression sum) {
+			operands_ = terms(sum);
+			index_ = -1;
 		}
-	}
 
-	void term(Expression expression, boolean negative) {
-		/* called for each term in a sum */
-	}
+		boolean next() {
+			if (++index_ >= operands_.operands_.length) {
+				return false;
+			}
+			term_ = operands_.operands_[index_];
+			negative_ = operands_.inverse_[index_];
+			return true;
+		}
 
-	public static void sumIterator(Expression expression, Iterator callback) {
-		sumIterator(expression, false, callback);
+		Expression getTerm() {
+			/* the current term with its sign applied, as getTerms() reports it */
+			return negative_ ? Expression.negate(term_) : term_;
+		}
+
+		int size() {
+			return operands_.operands_.length;
+		}
+
+		Expression term_;
+		boolean negative_;
+		private final Expression.Operands operands_;
+		private int index_;
 	}
 
-	private static void productIterator(Expression expression, boolean inverse, Iterator callback) {
-		switch (expression.getType()) {
-		case NODE_MULTIPLY:
-			productIterator(expression.getLeft(), inverse, callback);
-			productIterator(expression.getRight(), inverse, callback);
-			break;
-		case NODE_DIVIDE:
-			if (!expression.getLeft().isOne()) {
-				productIterator(expression.getLeft(), inverse, callback);
+	static final class Factors {
+		/* walks the factors of a product in place, the current factor is held in factor_ and marked
+		 * by inverse_ if it divides the product. an integer power is also split into base_ and
+		 * multiplicity_, otherwise base_ is the factor itself and multiplicity_ is one */
+		Factors(Expression product) {
+			this(product, 0);
+		}
+
+		Factors(Expression product, int expandLimit) {
+			operands_ = factors(product, expandLimit);
+			index_ = -1;
+		}
+
+		boolean next() {
+			if (++index_ >= operands_.operands_.length) {
+				return false;
+			}
+			factor_ = operands_.operands_[index_];
+			inverse_ = operands_.inverse_[index_];
+			base_ = factor_;
+			multiplicity_ = 1;
+			if (factor_.getType().equals(Expression.Type.NODE_EXPONENTIATE)) {
+				Long exponent = factor_.getRight().getSymbolAsInteger();
+				if (exponent != null && exponent == exponent.intValue()) {
+					base_ = factor_.getLeft();
+					multiplicity_ = exponent.intValue();
+				}
 			}
-			productIterator(expression.getRight(), !inverse, callback);
-			break;
-		default:
-			callback.factor(expression, inverse);
-			break;
+			return true;
 		}
+
+		Expression getFactor() {
+			/* the current factor, as 1/x if it divides the product, as getFactors() reports it */
+			return inverse_ ? Expression.divide(Expression.symbol("1"), factor_) : factor_;
+		}
+
+		int size() {
+			return operands_.operands_.length;
+		}
+
+		int getSign() {
+			/* the sign of the numeric factors of the product, whether they multiply or divide it */
+			return operands_.sign_;
+		}
+
+		Expression factor_;
+		boolean inverse_;
+		Expression base_;
+		int multiplicity_;
+		private final Expression.Operands operands_;
+		private int index_;
 	}
-	
-	void factor(Expression expression, boolean inverse) {
-		/* called for each factor in a product */
-	}
-	
-	public static void productIterator(Expression expression, Iterator callback) {
-		productIterator(expression, false, callback);
+
+	private static Expression.Operands terms(Expression sum) {
+		Expression.Operands terms = sum.terms_;
+		if (terms != null) {
+			return terms;
+		}
+		List<Expression> operands = new ArrayList<Expression>();
+		List<Boolean> negatives = new ArrayList<Boolean>();
+		Deque<Expression> nodes = new ArrayDeque<Expression>();
+		Deque<Boolean> signs = new ArrayDeque<Boolean>();
+		nodes.push(sum);
+		signs.push(false);
+		while (!nodes.isEmpty()) {
+			Expression node = nodes.pop();
+			boolean sign = signs.pop();
+			switch (node.getType()) {
+			case NODE_ADD:
+				nodes.push(node.getRight());
+				signs.push(sign);
+				nodes.push(node.getLeft());
+				signs.push(sign);
+				break;
+			case NODE_SUBTRACT:
+				nodes.push(node.getRight());
+				signs.push(!sign);
+				nodes.push(node.getLeft());
+				signs.push(sign);
+				break;
+			default:
+				operands.add(node);
+				negatives.add(sign);
+				break;
+			}
+		}
+		terms = new Expression.Operands(operands, negatives, 1, 0);
+		sum.terms_ = terms;
+		return terms;
 	}
-	
-	static int getSign(Expression expression) {
+
+	private static Expression.Operands factors(Expression product, int expandLimit) {
+		/* powers with a small positive integer exponent are expanded, x^2 is reported as x*x */
+		Expression.Operands factors = expandLimit == 0 ? product.factors_ : product.expanded_;
+		if (factors != null && factors.limit_ == expandLimit) {
+			return factors;
+		}
+		List<Expression> operands = new ArrayList<Expression>();
+		List<Boolean> inverses = new ArrayList<Boolean>();
 		int sign = 1;
-		List<Expression> factors = getFactors(expression, 0);
-		for (Expression factor : factors) {
-			if (factor.isSymbol()) {
-				Double value = 1.0;
-				try {
-					value = Double.parseDouble(factor.getSymbol());
-				} catch (NumberFormatException e) {
+		Deque<Expression> nodes = new ArrayDeque<Expression>();
+		Deque<Boolean> flags = new ArrayDeque<Boolean>();
+		nodes.push(product);
+		flags.push(false);
+		while (!nodes.isEmpty()) {
+			Expression node = nodes.pop();
+			boolean inverse = flags.pop();
+			switch (node.getType()) {
+			case NODE_MULTIPLY:
+				nodes.push(node.getRight());
+				flags.push(inverse);
+				nodes.push(node.getLeft());
+				flags.push(inverse);
+				continue;
+			case NODE_DIVIDE:
+				nodes.push(node.getRight());
+				flags.push(!inverse);
+				if (!node.getLeft().isOne()) {
+					nodes.push(node.getLeft());
+					flags.push(inverse);
 				}
-				if (value < 0) {
-					sign = -sign;
+				continue;
+			case NODE_EXPONENTIATE:
+				Long exponent = node.getRight().getSymbolAsInteger();
+				if (exponent != null && exponent > 0 && exponent < expandLimit) {
+					for (int i = 0; i < exponent; ++i) {
+						nodes.push(node.getLeft());
+						flags.push(inverse);
+					}
+					continue;
+				} else if (exponent != null && exponent < 0) { /* x^-n = 1/x^n */
+					exponent = -exponent;
+					nodes.push(exponent == 1 ? node.getLeft() : Expression.exponentiate(node.getLeft(), Expression.symbol(exponent.toString())));
+					flags.push(!inverse);
+					continue;
 				}
+				break;
+			default:
+				break;
+			}
+			if (node.isNumber() && node.getSymbolAsFloat() < 0) {
+				sign = -sign;
 			}
+			operands.add(node);
+			inverses.add(inverse);
+		}
+		factors = new Expression.Operands(operands, inverses, sign, expandLimit);
+		if (expandLimit == 0) {
+			product.factors_ = factors;
+		} else {
+			product.expanded_ = factors;
 		}
-		return sign;
+		return factors;
 	}
-	
+
+	static int getSign(Expression expression) {
+		return factors(expression, 0).sign_;
+	}
+
 	static Expression getAbs(Expression expression) {
+		Expression abs = expression.abs_;
+		if (abs != null) {
+			return abs;
+		}
 		List<Expression> newFactors = new ArrayList<Expression>();
-		List<Expression> factors = getFactors(expression, 0);
-		for (Expression factor : factors) {
-			if (factor.isSymbol()) {
-				try {
-					Double value = Double.parseDouble(factor.getSymbol());
-					if (value != -1.0) {
-						newFactors.add(new Expression(Math.abs(value)));
-					}
-					continue;
-				} catch (NumberFormatException e) {
+		for (Factors factors = new Factors(expression); factors.next();) {
+			if (factors.factor_.isNumber()) {
+				if (factors.factor_.getSymbolAsFloat() != -1.0) {
+					Expression magnitude = factors.factor_.getMagnitude();
+					newFactors.add(factors.inverse_ ? Expression.divide(Expression.symbol("1"), magnitude) : magnitude);
 				}
+				continue;
 			}
-			newFactors.add(factor);
+			newFactors.add(factors.getFactor());
 		}
-		return listProduct(newFactors);
+		abs = listProduct(newFactors);
+		expression.abs_ = abs;
+		return abs;
 	}
-	
+
 	static Expression listSum(List<Expression> terms) {
 		if (terms.size() == 0) {
-			return new Expression("0"); /* empty sum */
+			return Expression.symbol("0"); /* empty sum */
 		}
 		List<Expression> positive = new ArrayList<Expression>();
 		List<Expression> negative = new ArrayList<Expression>();
@@ -121,7 +247,7 @@ public class Iterator {
 		}
 		return result;
 	}
-	
+
 	static Expression removeRecipricol(Expression expression) {
 		/* if the expression is a quotient of the form 1/f(x), return f(x) */
 		if (expression.getType().equals(Expression.Type.NODE_DIVIDE)) {
@@ -131,15 +257,14 @@ public class Iterator {
 		}
 		return expression;
 	}
-	
+
 	static boolean hasRecipricol(Expression expression) {
-		Expression result = removeRecipricol(expression);
-		return !result.toString().equals(expression.toString());
+		return removeRecipricol(expression) != expression;
 	}
-	
+
 	static Expression listProduct(List<Expression> factors) {
 		if (factors.size() == 0) {
-			return new Expression("1"); /* empty product */
+			return Expression.symbol("1"); /* empty product */
 		}
 		List<Expression> numerators = new ArrayList<Expression>();
 		List<Expression> denominators = new ArrayList<Expression>();
@@ -167,7 +292,7 @@ public class Iterator {
 			}
 		}
 		if (numerator == null) {
-			numerator = new Expression("1");
+			numerator = Expression.symbol("1");
 		}
 		if (denominator == null) {
 			return numerator;
@@ -175,63 +300,25 @@ public class Iterator {
 		return Expression.divide(numerator, denominator);
 	}
 
-	static class TermCollector extends Iterator {
-		void term(Expression expression, boolean negative) {
-			if (negative) {
-				terms.add(Expression.negate(expression));
-			} else {
-				terms.add(expression);
-			}
-		}
-		List<Expression> terms = new ArrayList<Expression>();
-	}
-	
 	static List<Expression> getTerms(Expression sum) {
-		TermCollector collector = new TermCollector();
-		Iterator.sumIterator(sum, collector);
-		return collector.terms;
-	}
-	
-	static class ProductCollector extends Iterator {
-		ProductCollector(int expandLimit) {
-			expandLimit_ = expandLimit;
-		}
-		void factor(Expression expression, boolean inverse) {
-			if (expression.getType().equals(Expression.Type.NODE_EXPONENTIATE)) {
-				Long exponent = expression.getRight().getSymbolAsInteger();
-				if (exponent != null && exponent > 0 && exponent < expandLimit_) {
-					/* return x^2 as x*x in two calls */
-					for (int i = 0; i < exponent; ++i) {
-						Iterator.productIterator(expression.getLeft(), inverse, this);
-					}
-					return;
-				} else if (exponent != null && exponent < 0) {
-					exponent = -exponent;
-					Expression factor = Expression.exponentiate(expression.getLeft(), new Expression(exponent.toString()));
-					Iterator.productIterator(factor, !inverse, this);
-					return;
-				}
-			}
-			if (inverse) {
-				factors.add(Expression.divide(new Expression("1"), expression));
-			} else {
-				factors.add(expression);
-			}
+		List<Expression> terms = new ArrayList<Expression>();
+		for (Terms cursor = new Terms(sum); cursor.next();) {
+			terms.add(cursor.getTerm());
 		}
-		int expandLimit_;
-		List<Expression> factors = new ArrayList<Expression>();
+		return terms;
 	}
-	
+
 	static List<Expression> getFactors(Expression product, int expandLimit) {
-		ProductCollector collector = new ProductCollector(expandLimit);
-		Iterator.productIterator(product, collector);
-		return collector.factors;
+		List<Expression> factors = new ArrayList<Expression>();
+		for (Factors cursor = new Factors(product, expandLimit); cursor.next();) {
+			factors.add(cursor.getFactor());
+		}
+		return factors;
 	}
-	
+
 	static boolean hasFactor(Expression expression, Expression factor) {
-		List<Expression> factors = Iterator.getFactors(expression, 0);
-		for (Expression search : factors) {
-			if (Canonicalizer.compare(search, factor)) {
+		for (Factors factors = new Factors(expression); factors.next();) {
+			if (factors.getFactor().equals(factor)) {
 				return true;
 			}
 		}
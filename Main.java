@@ -10,6 +10,7 @@ public class Main {
 	public static void main(String[] args) {
 		BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(System.in));
 		boolean repl = true;
+		boolean saturate = args.length != 0 && args[0].equals("saturate");
 		while (repl) {
 			String expression = "";
 			if (args.length == 0) {
@@ -48,7 +49,7 @@ public class Main {
 			}
 			
 			if (!input.getType().equals(Expression.Type.NODE_EQUALS)) {
-				Expression result = Simplify.evaluate(input);
+				Expression result = saturate ? Simplify.saturate(input) : Simplify.evaluate(input);
 				System.out.println(input.toString() + " -> " + result.toString());
 				continue;
 			}
@@ -66,7 +67,7 @@ public class Main {
 					break;
 				}
 				Expression solution = solutions.get(i);
-				Expression equation = Expression.equals(new Expression("x"), solution);
+				Expression equation = Expression.equals(Expression.symbol("x"), solution);
 				if (solutions.size() > 1) {
 					Integer count = new Integer(i + 1);
 					System.out.println(input.toString() + " -> " + equation.toString() + " (" + count.toString() + ")");
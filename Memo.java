@@ -0,0 +1,83 @@
+package jsolve;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class Memo {
+	/* a bounded table of results shared by every thread and across requests. an expression is looked
+	 * up by its canonical form, so a tree parsed again, or with its terms and factors reordered, finds
+	 * the result of the first. the table is split into segments with their own locks, and each segment
+	 * evicts its least recently used entry once full, which is what bounds the trees it holds */
+	static final int SEGMENTS = 16;
+
+	static class Segment extends LinkedHashMap<Expression, Expression> {
+		Segment(int capacity, AtomicLong evictions) {
+			super(16, 0.75f, true); /* iterate in access order, so the eldest entry is the least recently used */
+			capacity_ = capacity;
+			evictions_ = evictions;
+		}
+
+		protected boolean removeEldestEntry(Map.Entry<Expression, Expression> eldest) {
+			if (size() <= capacity_) {
+				return false;
+			}
+			evictions_.incrementAndGet();
+			return true;
+		}
+
+		private static final long serialVersionUID = 1L;
+		private final int capacity_;
+		private final AtomicLong evictions_;
+	}
+
+	Memo(int capacity) {
+		segments_ = new Segment[SEGMENTS];
+		for (int i = 0; i < SEGMENTS; ++i) {
+			segments_[i] = new Segment(Math.max(1, capacity / SEGMENTS), evictions_);
+		}
+	}
+
+	Expression get(Expression expression) {
+		Expression key = Canonicalizer.canonicalize(expression);
+		Segment segment = segment(key.hashCode());
+		Expression result;
+		synchronized (segment) {
+			result = segment.get(key);
+		}
+		(result == null ? misses_ : hits_).incrementAndGet();
+		return result;
+	}
+
+	void put(Expression expression, Expression result) {
+		Expression key = Canonicalizer.canonicalize(expression);
+		Segment segment = segment(key.hashCode());
+		synchronized (segment) {
+			segment.put(key, result);
+		}
+	}
+
+	int size() {
+		int size = 0;
+		for (Segment segment : segments_) {
+			synchronized (segment) {
+				size += segment.size();
+			}
+		}
+		return size;
+	}
+
+	String statistics() {
+		return "hits: " + hits_.get() + ", misses: " + misses_.get() + ", evictions: " + evictions_.get() + ", size: " + size();
+	}
+
+	private Segment segment(int hash) {
+		hash ^= hash >>> 16;
+		return segments_[hash & (SEGMENTS - 1)];
+	}
+
+	final AtomicLong hits_ = new AtomicLong();
+	final AtomicLong misses_ = new AtomicLong();
+	final AtomicLong evictions_ = new AtomicLong();
+	private final Segment[] segments_;
+}
@@ -48,21 +48,14 @@ class Operator {
 		return order_;
 	}
 	
-	static Operator fromExpression(Expression expression) {
+	static Operator fromType(Expression.Type type) {
 		for (Operator operator : operators) {
-			if (operator.getType().equals(expression.getType())) {
+			if (operator.getType().equals(type)) {
 				return operator;
 			}
 		}
 		return null;
 	}
-	
-	static boolean isBinary(Expression expression) {
-		if (expression.isSymbol()) {
-			return false;
-		}
-		return fromExpression(expression).getArity().equals(Operator.Arity.BINARY);
-	}
 
 	int precedence_;
 	Expression.Type type_;
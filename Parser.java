@@ -19,48 +19,57 @@ public class Parser {
 	}
 
 	Parser(String expression) throws Error {
-		expression_ = parseExpression(new Lexer(expression), 0);
+		expression_ = parseExpression(new Lexer(expression));
 	}
 
-	Expression parseExpression(Lexer scanner, int depth) throws Error {
-		Deque<Expression> operands = new ArrayDeque<Expression>();
-		Deque<Expression> operators = new ArrayDeque<Expression>();
+	static class Frame {
+		/* the operands and operators of one level of parentheses */
+		Deque<Expression> operands_ = new ArrayDeque<Expression>();
+		Deque<Expression.Type> operators_ = new ArrayDeque<Expression.Type>();
+	}
+
+	Expression parseExpression(Lexer scanner) throws Error {
+		/* open parentheses are kept on an explicit stack, so nesting is limited only by the heap */
+		Deque<Frame> frames = new ArrayDeque<Frame>();
+		Frame frame = new Frame();
 		Token token = scanner.getNextToken();
 		if (token == null) {
-			if (depth != 0) {
-				throw new Error("expected closing brace");
-			}
 			return null;
 		}
 		boolean acceptUnaryOperator = true;
 		while (token != null) {
 			if (token.getType().equals(Token.Type.TOKEN_CLOSE_PARENTHESES)) {
-				if (depth == 0) {
+				if (frames.isEmpty()) {
 					throw new Error("unexpected closing brace");
 				}
-				break;
-			} else if (token.getType().equals(Token.Type.TOKEN_OPEN_PARENTHESES)) {
-				operands.push(parseExpression(scanner, depth+1));
+				Expression operand = finish(frame);
+				frame = frames.pop();
+				frame.operands_.push(operand);
 				acceptUnaryOperator = false;
+			} else if (token.getType().equals(Token.Type.TOKEN_OPEN_PARENTHESES)) {
+				frames.push(frame);
+				frame = new Frame();
+				acceptUnaryOperator = true;
 			} else if (token.getType().equals(Token.Type.TOKEN_SYMBOL)) {
-				operands.push(new Expression(token.getSymbol()));
+				frame.operands_.push(Expression.symbol(token.getSymbol()));
 				acceptUnaryOperator = false;
 			} else {
-				Expression expression = tokenToNode(token, acceptUnaryOperator);
-				Operator a = Operator.fromExpression(expression);
+				Deque<Expression> operands = frame.operands_;
+				Deque<Expression.Type> operators = frame.operators_;
+				Expression.Type type = tokenToType(token, acceptUnaryOperator);
+				Operator a = Operator.fromType(type);
 				if (a.getArity().equals(Operator.Arity.UNARY_RIGHT)) {
 					if (operands.size() < 1) {
 						throw new Error("expected operand");
 					}
-					expression.setChild(operands.pop());
-					operands.push(expression);
+					operands.push(Expression.unary(type, operands.pop()));
 					acceptUnaryOperator = false;
 				} else if (a.getArity().equals(Operator.Arity.UNARY_LEFT)) {
-					operators.push(expression);
+					operators.push(type);
 					acceptUnaryOperator = true;
 				} else { /* binary */
 					while (operators.size() > 0) {
-						Operator b = Operator.fromExpression(operators.peek());
+						Operator b = Operator.fromType(operators.peek());
 						if (a.getPrecedence() == b.getPrecedence()) {
 							if (a.getOrder().equals(Operator.Order.RIGHT_TO_LEFT)) {
 								break;
@@ -68,81 +77,79 @@ public class Parser {
 						} else if (a.getPrecedence() > b.getPrecedence()) {
 							break;
 						}
-						Expression operand = operators.pop();
-						if (Operator.isBinary(operand)) {
-							if (operands.size() < 2) {
-								throw new Error("expected operand");
-							}
-							operand.setRight(operands.pop());
-							operand.setLeft(operands.pop());
-						} else {
-							if (operands.size() < 1) {
-								throw new Error("expected operand");
-							}
-							operand.setChild(operands.pop());
-						}
-						operands.push(operand);
+						reduce(operators.pop(), operands);
 					}
-					operators.push(expression);
+					operators.push(type);
 					acceptUnaryOperator = true;
 				}
 			}
 			token = scanner.getNextToken();
 		}
-		if (token == null && depth != 0) {
+		if (!frames.isEmpty()) {
 			throw new Error("expected closing brace");
 		}
+		return finish(frame);
+	}
+
+	Expression finish(Frame frame) throws Error {
+		/* apply the remaining operators of a level, leaving its single result */
+		Deque<Expression> operands = frame.operands_;
+		Deque<Expression.Type> operators = frame.operators_;
 		while (operators.size() > 0) {
-			Expression operand = operators.pop();
-			if (Operator.isBinary(operand)) {
-				if (operands.size() < 2) {
-					throw new Error("expected operand");
-				}
-				operand.setRight(operands.pop());
-				operand.setLeft(operands.pop());
-			} else {
-				if (operands.size() < 1) {
-					throw new Error("expected operand");
-				}
-				operand.setChild(operands.pop());
-			}
-			operands.push(operand);
+			reduce(operators.pop(), operands);
 		}
 		if (operands.size() > 1) {
 			throw new Error("expected operator");
 		}
-		if (operators.size() != 0) {
+		if (operands.size() == 0) {
 			throw new Error("expected operand");
 		}
 		return operands.pop();
 	}
 
-	Expression tokenToNode(Token token, boolean unary) {
+	void reduce(Expression.Type type, Deque<Expression> operands) throws Error {
+		/* apply an operator to the operands on top of the stack */
+		if (Operator.fromType(type).getArity().equals(Operator.Arity.BINARY)) {
+			if (operands.size() < 2) {
+				throw new Error("expected operand");
+			}
+			Expression right = operands.pop();
+			Expression left = operands.pop();
+			operands.push(Expression.binary(type, left, right));
+		} else {
+			if (operands.size() < 1) {
+				throw new Error("expected operand");
+			}
+			operands.push(Expression.unary(type, operands.pop()));
+		}
+	}
+
+	Expression.Type tokenToType(Token token, boolean unary) {
 		switch (token.getType()) {
 		case TOKEN_SYMBOL:
-			return new Expression(token.getSymbol());
+			return Expression.Type.NODE_SYMBOL;
 		case TOKEN_EQUALS:
-			return new Expression(Expression.Type.NODE_EQUALS);
+			return Expression.Type.NODE_EQUALS;
 		case TOKEN_PLUS:
 			if (unary) {
-				return new Expression(Expression.Type.NODE_PLUS);
+				return Expression.Type.NODE_PLUS;
 			} else {
-				return new Expression(Expression.Type.NODE_ADD);
+				return Expression.Type.NODE_ADD;
 			}
 		case TOKEN_MINUS:
 			if (unary) {
-				return new Expression(Expression.Type.NODE_MINUS);
+				return Expression.Type.NODE_MINUS;
 			} else {
-				return new Expression(Expression.Type.NODE_SUBTRACT);
+				return Expression.Type.NODE_SUBTRACT;
 			}
 		case TOKEN_MULTIPLY:
-			return new Expression(Expression.Type.NODE_MULTIPLY);
+			return Expression.Type.NODE_MULTIPLY;
 		case TOKEN_DIVIDE:
-			return new Expression(Expression.Type.NODE_DIVIDE);
+			return Expression.Type.NODE_DIVIDE;
 		case TOKEN_EXPONENTIATE:
-			return new Expression(Expression.Type.NODE_EXPONENTIATE);
+			return Expression.Type.NODE_EXPONENTIATE;
 		case TOKEN_BANG:
-			return new Expression(Expression.Type.NODE_FACTORIAL);
+			return Expression.Type.NODE_FACTORIAL;
 		default:
 			return null;
 		}
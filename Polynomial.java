@@ -27,12 +27,12 @@ public class Polynomial {
 	
 	Polynomial(Expression expression, String variableName) {
 		variableName_ = variableName;
-		List<Expression> terms = Iterator.getTerms(expression);
-		for (Expression term : terms) {
+		for (Iterator.Terms terms = new Iterator.Terms(expression); terms.next();) {
+			Expression term = terms.getTerm();
 			List<Expression> coefficients = new ArrayList<Expression>();
 			List<Expression> variables = new ArrayList<Expression>();
-			List<Expression> factors = Iterator.getFactors(term, 0);
-			for (Expression factor : factors) {
+			for (Iterator.Factors factors = new Iterator.Factors(term); factors.next();) {
+				Expression factor = factors.getFactor();
 				if (factor.contains(variableName)) {
 					variables.add(factor);
 				} else {
@@ -49,7 +49,7 @@ public class Polynomial {
 				if (variable_ == null) {
 					variable_ = variable;
 					result.setDegree(exponent);
-				} else if (Canonicalizer.compare(variable_, variable)) {
+				} else if (variable_.equals(variable)) {
 					result.setDegree(exponent);
 				} else { /* this is not a polynomial */
 					result.setExpression(term);
@@ -85,13 +85,13 @@ public class Polynomial {
 		if (commonFactor > 1) {
 			Expression base = getBase(variable_);
 			Long exponent = getExponent(variable_) * commonFactor;
-			variable_ = Expression.exponentiate(base, new Expression(exponent.toString()));
+			variable_ = Expression.exponentiate(base, Expression.symbol(exponent.toString()));
 		}
 	}
 	
 	Polynomial(Polynomial other) {
 		variableName_ = other.variableName_;
-		variable_ = other.variable_.copy();
+		variable_ = other.variable_;
 		for (Coefficient coefficient : other.coefficients_) {
 			Coefficient newCoefficient = new Coefficient();
 			newCoefficient.setDegree(coefficient.getDegree());
@@ -107,7 +107,7 @@ public class Polynomial {
 	Expression getExpression() {
 		List<Expression> result = new ArrayList<Expression>();
 		for (Coefficient coefficient : coefficients_) {
-			Expression exponent = new Expression(coefficient.getDegree().toString());
+			Expression exponent = Expression.symbol(coefficient.getDegree().toString());
 			Expression term = variable_;
 			if (!exponent.isOne()) {
 				term = Expression.exponentiate(term, exponent);
@@ -200,10 +200,9 @@ public class Polynomial {
 		/* return the product of any constant factors in the exponent: e^(2*3*x) -> 6 */
 		long exponent = 1;
 		if (expression.getType().equals(Expression.Type.NODE_EXPONENTIATE)) {
-			List<Expression> factors = Iterator.getFactors(expression.getRight(), 0);
-			for (Expression factor : factors) {
-				Long value = factor.getSymbolAsInteger();
-				if (value != null) {
+			for (Iterator.Factors factors = new Iterator.Factors(expression.getRight()); factors.next();) {
+				Long value = factors.factor_.getSymbolAsInteger();
+				if (value != null && !factors.inverse_) {
 					exponent *= value;
 				}
 			}
@@ -215,10 +214,9 @@ public class Polynomial {
 		/* remove the constant factors from the exponent: e^(2*3*x) -> e^x */
 		if (expression.getType().equals(Expression.Type.NODE_EXPONENTIATE)) {
 			List<Expression> newFactors = new ArrayList<Expression>();
-			List<Expression> factors = Iterator.getFactors(expression.getRight(), 0);
-			for (Expression factor : factors) {
-				if (factor.getSymbolAsInteger() == null) {
-					newFactors.add(factor);
+			for (Iterator.Factors factors = new Iterator.Factors(expression.getRight()); factors.next();) {
+				if (factors.inverse_ || factors.factor_.getSymbolAsInteger() == null) {
+					newFactors.add(factors.getFactor());
 				}
 			}
 			Expression newExponent = Iterator.listProduct(newFactors);
@@ -0,0 +1,388 @@
+package jsolve;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.MathContext;
+import java.util.HashMap;
+import java.util.Map;
+
+public class Rational implements Comparable<Rational> {
+	/* an exact fraction in lowest terms, held in longs until a result no longer fits */
+	static final Rational ZERO = new Rational(0, 1);
+	static final Rational ONE = new Rational(1, 1);
+
+	private Rational(long numerator, long denominator) {
+		numerator_ = numerator;
+		denominator_ = denominator;
+		bigNumerator_ = null;
+		bigDenominator_ = null;
+	}
+
+	private Rational(BigInteger numerator, BigInteger denominator) {
+		numerator_ = 0;
+		denominator_ = 0;
+		bigNumerator_ = numerator;
+		bigDenominator_ = denominator;
+	}
+
+	static Rational valueOf(long value) {
+		return new Rational(value, 1);
+	}
+
+	static Rational valueOf(long numerator, long denominator) {
+		if (denominator == 0) {
+			return null; /* zero divide */
+		}
+		if (numerator == Long.MIN_VALUE || denominator == Long.MIN_VALUE) {
+			return valueOf(BigInteger.valueOf(numerator), BigInteger.valueOf(denominator));
+		}
+		if (denominator < 0) {
+			numerator = -numerator;
+			denominator = -denominator;
+		}
+		long gcd = Simplify.gcd(Math.abs(numerator), denominator);
+		return new Rational(numerator / gcd, denominator / gcd);
+	}
+
+	static Rational valueOf(BigInteger value) {
+		return valueOf(value, BigInteger.ONE);
+	}
+
+	static Rational valueOf(BigInteger numerator, BigInteger denominator) {
+		if (denominator.signum() == 0) {
+			return null; /* zero divide */
+		}
+		if (denominator.signum() < 0) {
+			numerator = numerator.negate();
+			denominator = denominator.negate();
+		}
+		BigInteger gcd = numerator.gcd(denominator);
+		if (!gcd.equals(BigInteger.ONE)) {
+			numerator = numerator.divide(gcd);
+			denominator = denominator.divide(gcd);
+		}
+		if (numerator.bitLength() < 64 && denominator.bitLength() < 64) {
+			return new Rational(numerator.longValue(), denominator.longValue());
+		}
+		return new Rational(numerator, denominator);
+	}
+
+	static Rational parse(String text) {
+		/* parse an integer literal of any size, or return null */
+		int start = text.startsWith("-") ? 1 : 0;
+		if (start == text.length()) {
+			return null;
+		}
+		for (int i = start; i < text.length(); ++i) {
+			if (!Character.isDigit(text.charAt(i))) {
+				return null;
+			}
+		}
+		if (text.length() - start < 19) {
+			return valueOf(Long.parseLong(text));
+		}
+		return valueOf(new BigInteger(text));
+	}
+
+	boolean isSmall() {
+		return bigNumerator_ == null;
+	}
+
+	boolean isInteger() {
+		return isSmall() ? denominator_ == 1 : bigDenominator_.equals(BigInteger.ONE);
+	}
+
+	int signum() {
+		return isSmall() ? Long.signum(numerator_) : bigNumerator_.signum();
+	}
+
+	BigInteger getNumerator() {
+		return isSmall() ? BigInteger.valueOf(numerator_) : bigNumerator_;
+	}
+
+	BigInteger getDenominator() {
+		return isSmall() ? BigInteger.valueOf(denominator_) : bigDenominator_;
+	}
+
+	Rational numerator() {
+		return isSmall() ? valueOf(numerator_) : valueOf(bigNumerator_);
+	}
+
+	Rational denominator() {
+		return isSmall() ? valueOf(denominator_) : valueOf(bigDenominator_);
+	}
+
+	Long longValue() {
+		/* the value if it is an integer that fits in a long, otherwise null */
+		return isSmall() && denominator_ == 1 ? numerator_ : null;
+	}
+
+	double doubleValue() {
+		if (isSmall()) {
+			return (double)numerator_ / denominator_;
+		}
+		return new BigDecimal(bigNumerator_).divide(new BigDecimal(bigDenominator_), MathContext.DECIMAL64).doubleValue();
+	}
+
+	Rational negate() {
+		if (isSmall() && numerator_ != Long.MIN_VALUE) {
+			return new Rational(-numerator_, denominator_);
+		}
+		return valueOf(getNumerator().negate(), getDenominator());
+	}
+
+	Rational abs() {
+		return signum() < 0 ? negate() : this;
+	}
+
+	Rational add(Rational other) {
+		if (isSmall() && other.isSmall()) {
+			if (denominator_ == 1 && other.denominator_ == 1) {
+				long sum = numerator_ + other.numerator_;
+				if (((numerator_ ^ sum) & (other.numerator_ ^ sum)) >= 0) {
+					return new Rational(sum, 1); /* no overflow */
+				}
+			} else if (!overflows(numerator_, other.denominator_) && !overflows(other.numerator_, denominator_)
+					&& !overflows(denominator_, other.denominator_)) {
+				long a = numerator_ * other.denominator_;
+				long b = other.numerator_ * denominator_;
+				long sum = a + b;
+				if (((a ^ sum) & (b ^ sum)) >= 0) {
+					return valueOf(sum, denominator_ * other.denominator_);
+				}
+			}
+		}
+		BigInteger numerator = getNumerator().multiply(other.getDenominator()).add(other.getNumerator().multiply(getDenominator()));
+		return valueOf(numerator, getDenominator().multiply(other.getDenominator()));
+	}
+
+	Rational subtract(Rational other) {
+		return add(other.negate());
+	}
+
+	Rational multiply(Rational other) {
+		if (isSmall() && other.isSmall()) {
+			if (!overflows(numerator_, other.numerator_) && !overflows(denominator_, other.denominator_)) {
+				if (denominator_ == 1 && other.denominator_ == 1) {
+					return new Rational(numerator_ * other.numerator_, 1);
+				}
+				return valueOf(numerator_ * other.numerator_, denominator_ * other.denominator_);
+			}
+		}
+		return valueOf(getNumerator().multiply(other.getNumerator()), getDenominator().multiply(other.getDenominator()));
+	}
+
+	Rational reciprocal() {
+		if (isSmall()) {
+			return valueOf(denominator_, numerator_);
+		}
+		return valueOf(bigDenominator_, bigNumerator_);
+	}
+
+	Rational divide(Rational other) {
+		Rational reciprocal = other.reciprocal();
+		if (reciprocal == null) {
+			return null; /* zero divide */
+		}
+		return multiply(reciprocal);
+	}
+
+	Rational pow(long exponent) {
+		/* exact integer power by squaring, negative exponents give the reciprocal */
+		if (exponent < 0) {
+			Rational reciprocal = reciprocal();
+			return reciprocal == null ? null : reciprocal.pow(-exponent);
+		}
+		Rational result = ONE;
+		Rational square = this;
+		while (exponent != 0) {
+			if ((exponent & 1) != 0) {
+				result = result.multiply(square);
+			}
+			exponent >>= 1;
+			if (exponent != 0) {
+				square = square.multiply(square);
+			}
+		}
+		return result;
+	}
+
+	static BigInteger root(BigInteger value, int degree) {
+		/* the integer part of the degree-th root of a non-negative integer, by Newton's method from above */
+		if (value.signum() == 0 || degree == 1) {
+			return value;
+		}
+		BigInteger k = BigInteger.valueOf(degree);
+		BigInteger k1 = BigInteger.valueOf(degree - 1);
+		BigInteger x = BigInteger.ONE.shiftLeft((value.bitLength() + degree - 1) / degree); /* at least the root */
+		while (true) {
+			BigInteger y = k1.multiply(x).add(value.divide(x.pow(degree - 1))).divide(k);
+			if (y.compareTo(x) >= 0) {
+				return x;
+			}
+			x = y;
+		}
+	}
+
+	static BigInteger exactRoot(BigInteger value, int degree) {
+		/* the degree-th root of a perfect power, or null */
+		BigInteger root = root(value, degree);
+		return root.pow(degree).equals(value) ? root : null;
+	}
+
+	static boolean isPrime(int n) {
+		if (n < 2) {
+			return false;
+		}
+		for (int d = 2; d * d <= n; ++d) {
+			if (n % d == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	static BigInteger[] perfectPower(BigInteger value) {
+		/* value written as g^d with d as large as possible, returned as {g, d}. a power of composite degree
+		 * is a repeated power of prime degree, so only prime roots are taken, each as often as it is exact */
+		BigInteger generator = value;
+		int degree = 1;
+		if (value.compareTo(BigInteger.ONE) > 0 && value.bitLength() <= Simplify.MAX_CONSTANT_BITS) {
+			for (int k = 2; k <= generator.bitLength(); ++k) {
+				if (!isPrime(k)) {
+					continue;
+				}
+				for (BigInteger root = exactRoot(generator, k); root != null; root = exactRoot(generator, k)) {
+					generator = root;
+					degree *= k;
+				}
+			}
+		}
+		return new BigInteger[] {generator, BigInteger.valueOf(degree)};
+	}
+
+	static Rational log(BigInteger base, BigInteger value) {
+		/* the exact logarithm of one positive integer to the base of another, or null if it is irrational.
+		 * both are written as powers of the smallest integer that base is a power of */
+		if (base.compareTo(BigInteger.ONE) <= 0 || value.signum() <= 0) {
+			return null;
+		}
+		if (base.bitLength() > Simplify.MAX_CONSTANT_BITS || value.bitLength() > Simplify.MAX_CONSTANT_BITS) {
+			return null; /* too large to search for a common generator */
+		}
+		BigInteger[] power = perfectPower(base);
+		BigInteger generator = power[0];
+		long exponent = 0;
+		while (value.compareTo(BigInteger.ONE) > 0) {
+			BigInteger[] division = value.divideAndRemainder(generator);
+			if (division[1].signum() != 0) {
+				return null;
+			}
+			value = division[0];
+			++exponent;
+		}
+		return valueOf(exponent, power[1].longValue());
+	}
+
+	static final long[] FACTORIALS = new long[21]; /* every factorial that fits in a long, up to 20! */
+	static {
+		FACTORIALS[0] = 1;
+		for (int i = 1; i < FACTORIALS.length; ++i) {
+			FACTORIALS[i] = FACTORIALS[i - 1] * i;
+		}
+	}
+
+	private static final Map<Integer, BigInteger> factorials = new HashMap<Integer, BigInteger>();
+
+	static BigInteger factorial(int n) {
+		/* read from the table for small n, otherwise the product of 21..n is split in halves so the
+		 * multiplications are between numbers of a similar size, and the result is kept */
+		if (n < FACTORIALS.length) {
+			return BigInteger.valueOf(FACTORIALS[n]);
+		}
+		synchronized (factorials) {
+			BigInteger result = factorials.get(n);
+			if (result == null) {
+				result = product(FACTORIALS.length, n).multiply(BigInteger.valueOf(FACTORIALS[FACTORIALS.length - 1]));
+				factorials.put(n, result);
+			}
+			return result;
+		}
+	}
+
+	private static BigInteger product(int from, int to) {
+		/* from*(from + 1)*...*to */
+		if (to - from < 8) {
+			BigInteger result = BigInteger.valueOf(from);
+			for (int i = from + 1; i <= to; ++i) {
+				result = result.multiply(BigInteger.valueOf(i));
+			}
+			return result;
+		}
+		int middle = (from + to) >>> 1;
+		return product(from, middle).multiply(product(middle + 1, to));
+	}
+
+	static Long inverseFactorial(BigInteger value) {
+		/* n such that n! = value, or null if there is none. 1 = 0! = 1! has two and is also refused */
+		if (value.compareTo(BigInteger.ONE) <= 0) {
+			return null;
+		}
+		long n = 1;
+		while (value.compareTo(BigInteger.ONE) > 0) {
+			BigInteger[] division = value.divideAndRemainder(BigInteger.valueOf(++n));
+			if (division[1].signum() != 0) {
+				return null;
+			}
+			value = division[0];
+		}
+		return n;
+	}
+
+	int bitLength() {
+		/* a rough measure of size, used to refuse to build enormous constants */
+		return getNumerator().bitLength() + getDenominator().bitLength();
+	}
+
+	static boolean overflows(long a, long b) {
+		/* the product fits when the high word is just the sign extension of the low word */
+		return Math.multiplyHigh(a, b) != ((a * b) >> 63);
+	}
+
+	public int compareTo(Rational other) {
+		if (isSmall() && other.isSmall() && !overflows(numerator_, other.denominator_) && !overflows(other.numerator_, denominator_)) {
+			return Long.compare(numerator_ * other.denominator_, other.numerator_ * denominator_);
+		}
+		return getNumerator().multiply(other.getDenominator()).compareTo(other.getNumerator().multiply(getDenominator()));
+	}
+
+	public boolean equals(Object object) {
+		if (!(object instanceof Rational)) {
+			return false;
+		}
+		Rational other = (Rational)object;
+		if (isSmall() && other.isSmall()) {
+			return numerator_ == other.numerator_ && denominator_ == other.denominator_;
+		}
+		return getNumerator().equals(other.getNumerator()) && getDenominator().equals(other.getDenominator());
+	}
+
+	public int hashCode() {
+		if (isSmall()) {
+			return Long.hashCode(numerator_) * 31 + Long.hashCode(denominator_);
+		}
+		return bigNumerator_.hashCode() * 31 + bigDenominator_.hashCode();
+	}
+
+	public String toString() {
+		if (isInteger()) {
+			return isSmall() ? Long.toString(numerator_) : bigNumerator_.toString();
+		}
+		return getNumerator().toString() + "/" + getDenominator().toString();
+	}
+
+	final long numerator_;
+	final long denominator_;
+	final BigInteger bigNumerator_;
+	final BigInteger bigDenominator_;
+}
@@ -0,0 +1,250 @@
+package jsolve;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+public class RationalFunction {
+	/* a quotient of two sparse polynomials. purely algebraic input (sums, products, quotients and integer
+	 * powers of symbols and exact numbers) is brought to this form in one pass over the tree */
+	static final int TERM_LIMIT = 2000; /* larger intermediate results are left to the generic rewrites */
+	static final int POWER_LIMIT = 64; /* larger integer powers are left unexpanded */
+
+	RationalFunction(SparsePolynomial numerator, SparsePolynomial denominator) {
+		numerator_ = numerator;
+		denominator_ = denominator;
+	}
+
+	static RationalFunction valueOf(Expression expression, SparsePolynomial.Variables variables) {
+		/* the quotient an expression is equal to, or null if it is not algebraic, divides by zero or grows
+		 * past the limits. the constants e and pi are treated as variables, i is not since i*i = -1 */
+		Map<Expression, RationalFunction> values = new IdentityHashMap<Expression, RationalFunction>();
+		Deque<Expression> stack = new ArrayDeque<Expression>();
+		stack.push(expression);
+		while (!stack.isEmpty()) {
+			Expression top = stack.peek();
+			if (values.containsKey(top)) {
+				stack.pop();
+				continue;
+			}
+			RationalFunction value = null;
+			if (top.isSymbol()) {
+				Rational exact = top.getSymbolAsRational();
+				if (exact != null) {
+					value = new RationalFunction(SparsePolynomial.constant(exact), ONE);
+				} else if (top.isNumber() || top.isSymbol("i")) {
+					return null; /* a decimal, or the imaginary unit */
+				} else {
+					value = new RationalFunction(SparsePolynomial.variable(variables.indexOf(top)), ONE);
+				}
+			} else if (top.isUnary()) {
+				RationalFunction child = values.get(top.getChild());
+				if (child == null) {
+					stack.push(top.getChild());
+					continue;
+				}
+				switch (top.getType()) {
+				case NODE_PLUS:
+					value = child;
+					break;
+				case NODE_MINUS:
+					value = child.negate();
+					break;
+				default:
+					return null;
+				}
+			} else {
+				switch (top.getType()) {
+				case NODE_ADD:
+				case NODE_SUBTRACT:
+				case NODE_MULTIPLY:
+				case NODE_DIVIDE:
+				case NODE_EXPONENTIATE:
+					break;
+				default:
+					return null; /* an equation or a logarithm */
+				}
+				RationalFunction left = values.get(top.getLeft());
+				RationalFunction right = null;
+				Long exponent = null;
+				if (top.getType().equals(Expression.Type.NODE_EXPONENTIATE)) {
+					exponent = top.getRight().getSymbolAsInteger();
+					if (exponent == null || Math.abs(exponent) > POWER_LIMIT) {
+						return null;
+					}
+				} else {
+					right = values.get(top.getRight());
+					if (right == null) {
+						stack.push(top.getRight());
+					}
+				}
+				if (left == null) {
+					stack.push(top.getLeft());
+				}
+				if (left == null || (right == null && exponent == null)) {
+					continue;
+				}
+				switch (top.getType()) {
+				case NODE_ADD:
+					value = left.add(right);
+					break;
+				case NODE_SUBTRACT:
+					value = left.add(right.negate());
+					break;
+				case NODE_MULTIPLY:
+					value = left.multiply(right);
+					break;
+				case NODE_DIVIDE:
+					value = left.divide(right);
+					break;
+				default:
+					value = left.pow(exponent.intValue());
+					break;
+				}
+				if (value == null || value.numerator_.size() + value.denominator_.size() > TERM_LIMIT) {
+					return null; /* a zero divide, an exponent that overflows, or too many terms */
+				}
+			}
+			values.put(top, value);
+			stack.pop();
+		}
+		return values.get(expression);
+	}
+
+	RationalFunction negate() {
+		return new RationalFunction(numerator_.negate(), denominator_);
+	}
+
+	RationalFunction add(RationalFunction other) {
+		/* a/b + c/b = (a + c)/b, otherwise a/b + c/d = (ad + cb)/bd */
+		if (denominator_.equals(other.denominator_)) {
+			return new RationalFunction(numerator_.add(other.numerator_), denominator_);
+		}
+		SparsePolynomial ad = numerator_.multiply(other.denominator_, TERM_LIMIT);
+		SparsePolynomial cb = other.numerator_.multiply(denominator_, TERM_LIMIT);
+		SparsePolynomial bd = denominator_.multiply(other.denominator_, TERM_LIMIT);
+		if (ad == null || cb == null || bd == null) {
+			return null;
+		}
+		return new RationalFunction(ad.add(cb), bd).normalize();
+	}
+
+	RationalFunction multiply(RationalFunction other) {
+		SparsePolynomial numerator = numerator_.multiply(other.numerator_, TERM_LIMIT);
+		SparsePolynomial denominator = denominator_.multiply(other.denominator_, TERM_LIMIT);
+		if (numerator == null || denominator == null) {
+			return null;
+		}
+		return new RationalFunction(numerator, denominator).normalize();
+	}
+
+	RationalFunction divide(RationalFunction other) {
+		if (other.numerator_.isZero()) {
+			return null; /* zero divide */
+		}
+		return multiply(new RationalFunction(other.denominator_, other.numerator_));
+	}
+
+	RationalFunction pow(int exponent) {
+		if (exponent < 0) {
+			if (numerator_.isZero()) {
+				return null; /* zero divide */
+			}
+			return new RationalFunction(denominator_, numerator_).normalize().pow(-exponent);
+		}
+		SparsePolynomial numerator = numerator_.pow(exponent, TERM_LIMIT);
+		SparsePolynomial denominator = denominator_.pow(exponent, TERM_LIMIT);
+		if (numerator == null || denominator == null) {
+			return null;
+		}
+		return new RationalFunction(numerator, denominator);
+	}
+
+	RationalFunction normalize() {
+		/* a constant denominator is divided into the numerator, so a polynomial is kept over one */
+		Rational constant = denominator_.getConstant();
+		if (constant == null || constant.equals(Rational.ONE)) {
+			return this;
+		}
+		return new RationalFunction(numerator_.scale(constant.reciprocal()), ONE);
+	}
+
+	RationalFunction reduce() {
+		/* cancel what the numerator and denominator have in common: the largest monomial dividing
+		 * both, the whole denominator when it divides the numerator exactly, or with one variable
+		 * the greatest common divisor. the denominator is left with a leading coefficient of one */
+		RationalFunction result = normalize();
+		if (result.denominator_.getConstant() != null || result.numerator_.isZero()) {
+			return result.numerator_.isZero() ? new RationalFunction(result.numerator_, ONE) : result;
+		}
+		SparsePolynomial numerator = result.numerator_;
+		SparsePolynomial denominator = result.denominator_;
+		SparsePolynomial.Monomial common = numerator.getMonomialGcd().gcd(denominator.getMonomialGcd());
+		if (!common.isOne()) {
+			numerator = numerator.divide(common);
+			denominator = denominator.divide(common);
+		}
+		SparsePolynomial[] division = numerator.divide(denominator);
+		if (division != null && division[1].isZero()) {
+			return new RationalFunction(division[0], ONE);
+		}
+		int variable = numerator.getSoleVariable();
+		if (variable >= 0 && variable == denominator.getSoleVariable()) {
+			SparsePolynomial gcd = SparsePolynomial.gcd(numerator, denominator);
+			if (gcd != null && gcd.getConstant() == null) {
+				SparsePolynomial[] top = numerator.divide(gcd);
+				SparsePolynomial[] bottom = denominator.divide(gcd);
+				if (top != null && bottom != null) {
+					numerator = top[0];
+					denominator = bottom[0];
+				}
+			}
+		}
+		Rational leading = denominator.getCoefficient(denominator.getLeading());
+		return new RationalFunction(numerator.scale(leading.reciprocal()), denominator.scale(leading.reciprocal())).normalize();
+	}
+
+	boolean isLowest() {
+		/* whether the quotient reduce gives is sure to have no common factor left: the monomials it
+		 * cancels are all a monomial or a constant can share, and with one variable on each side it
+		 * took the greatest common divisor, or the two sides have none in common */
+		if (numerator_.getConstant() != null || denominator_.getConstant() != null
+				|| numerator_.size() == 1 || denominator_.size() == 1) {
+			return true;
+		}
+		return numerator_.getSoleVariable() >= 0 && denominator_.getSoleVariable() >= 0;
+	}
+
+	boolean isConstant() {
+		return numerator_.getConstant() != null && denominator_.getConstant() != null;
+	}
+
+	Rational getConstant() {
+		/* the value of a constant quotient, or null */
+		Rational numerator = numerator_.getConstant();
+		Rational denominator = denominator_.getConstant();
+		return numerator == null || denominator == null ? null : numerator.divide(denominator);
+	}
+
+	SparsePolynomial getNumerator() {
+		return numerator_;
+	}
+
+	SparsePolynomial getDenominator() {
+		return denominator_;
+	}
+
+	Expression toExpression(SparsePolynomial.Variables variables) {
+		if (denominator_.size() == 1) { /* a monomial divides each term, x - 1/(27*x^3) rather than (27*x^4 - 1)/(27*x^3) */
+			SparsePolynomial.Monomial divisor = denominator_.getLeading();
+			return numerator_.scale(denominator_.getCoefficient(divisor).reciprocal()).toExpression(variables, divisor);
+		}
+		return Expression.divide(numerator_.toExpression(variables), denominator_.toExpression(variables));
+	}
+
+	static final SparsePolynomial ONE = SparsePolynomial.constant(Rational.ONE);
+
+	private final SparsePolynomial numerator_;
+	private final SparsePolynomial denominator_;
+}
@@ -0,0 +1,216 @@
+package jsolve;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class Rule {
+	/* a rewrite from a pattern to a template, both parsed and compiled once. symbols that start with
+	 * an underscore are placeholders: in a pattern they match any subexpression, and in the template
+	 * they are replaced by whatever they matched */
+	Rule(String pattern, String template) {
+		this(pattern, template, null, null);
+	}
+
+	Rule(String pattern, String template, String constant, Expression value) {
+		/* constant names a placeholder that only appears in the template, and is always bound to value */
+		Expression expression = Parser.parse(pattern);
+		List<Expression.Type> types = new ArrayList<Expression.Type>();
+		List<String> symbols = new ArrayList<String>();
+		List<Integer> slots = new ArrayList<Integer>();
+		Deque<Expression> stack = new ArrayDeque<Expression>();
+		stack.push(expression);
+		while (!stack.isEmpty()) {
+			Expression node = stack.pop();
+			if (isPlaceholder(node)) {
+				int slot = names_.indexOf(node.getSymbol());
+				if (slot < 0) {
+					slot = names_.size();
+					names_.add(node.getSymbol());
+				}
+				types.add(null);
+				symbols.add(null);
+				slots.add(slot);
+				continue;
+			}
+			types.add(node.getType());
+			symbols.add(node.getSymbol());
+			slots.add(-1);
+			if (node.isUnary()) {
+				stack.push(node.getChild());
+			} else if (node.isBinary()) {
+				stack.push(node.getRight());
+				stack.push(node.getLeft());
+			}
+		}
+		types_ = types.toArray(new Expression.Type[types.size()]);
+		symbols_ = symbols.toArray(new String[symbols.size()]);
+		slots_ = new int[slots.size()];
+		for (int i = 0; i < slots_.length; ++i) {
+			slots_[i] = slots.get(i);
+		}
+		placeholders_ = names_.size();
+		numbers_ = new boolean[placeholders_];
+		if (constant != null) {
+			names_.add(constant);
+			constants_.add(value);
+		}
+		template_ = new Template(template, names_);
+	}
+
+	Rule numbers(String... placeholders) {
+		/* only match when these placeholders are bound to numbers */
+		for (String placeholder : placeholders) {
+			numbers_[names_.indexOf(placeholder)] = true;
+		}
+		return this;
+	}
+
+	Expression apply(Expression expression) {
+		/* the rewritten expression, or null if the pattern does not match */
+		Expression[] bindings = new Expression[names_.size()];
+		if (!match(expression, bindings)) {
+			return null;
+		}
+		for (int i = 0; i < constants_.size(); ++i) {
+			bindings[placeholders_ + i] = constants_.get(i);
+		}
+		return template_.instantiate(bindings);
+	}
+
+	boolean match(Expression expression, Expression[] bindings) {
+		/* walk the expression in step with the pattern, which is stored in prefix order */
+		Deque<Expression> stack = new ArrayDeque<Expression>();
+		stack.push(expression);
+		for (int i = 0; i < types_.length; ++i) {
+			Expression node = stack.pop();
+			int slot = slots_[i];
+			if (slot >= 0) {
+				if (numbers_[slot] && node.getSymbolAsFloat() == null) {
+					return false;
+				}
+				if (bindings[slot] == null) {
+					bindings[slot] = node;
+				} else if (!bindings[slot].equals(node)) {
+					return false; /* a repeated placeholder must match the same expression */
+				}
+			} else if (node.getType() != types_[i]) {
+				return false;
+			} else if (node.isSymbol()) {
+				if (!node.getSymbol().equals(symbols_[i])) {
+					return false;
+				}
+			} else if (node.isUnary()) {
+				stack.push(node.getChild());
+			} else {
+				stack.push(node.getRight());
+				stack.push(node.getLeft());
+			}
+		}
+		return true;
+	}
+
+	Expression.Type[] getKeys() {
+		/* the node types along the pattern in prefix order, null where a placeholder matches anything */
+		return types_;
+	}
+
+	static boolean isPlaceholder(Expression expression) {
+		return expression.isSymbol() && expression.getSymbol().startsWith("_");
+	}
+
+	static class Template {
+		/* an expression with named placeholders, stored in postfix order so it can be filled in with one pass */
+		Template(String text, String... names) {
+			this(text, Arrays.asList(names));
+		}
+
+		Template(String text, List<String> names) {
+			Expression expression = Parser.parse(text);
+			Map<Expression, Integer> index = new IdentityHashMap<Expression, Integer>();
+			List<Expression> nodes = new ArrayList<Expression>();
+			Deque<Expression> stack = new ArrayDeque<Expression>();
+			stack.push(expression);
+			while (!stack.isEmpty()) {
+				Expression top = stack.peek();
+				if (index.containsKey(top)) {
+					stack.pop();
+					continue;
+				}
+				boolean ready = true;
+				if (top.isUnary() && !index.containsKey(top.getChild())) {
+					stack.push(top.getChild());
+					ready = false;
+				} else if (top.isBinary()) {
+					if (!index.containsKey(top.getRight())) {
+						stack.push(top.getRight());
+						ready = false;
+					}
+					if (!index.containsKey(top.getLeft())) {
+						stack.push(top.getLeft());
+						ready = false;
+					}
+				}
+				if (ready) {
+					stack.pop();
+					index.put(top, nodes.size());
+					nodes.add(top);
+				}
+			}
+			nodes_ = nodes.toArray(new Expression[nodes.size()]);
+			left_ = new int[nodes_.length];
+			right_ = new int[nodes_.length];
+			slots_ = new int[nodes_.length];
+			for (int i = 0; i < nodes_.length; ++i) {
+				Expression node = nodes_[i];
+				left_[i] = -1;
+				right_[i] = -1;
+				slots_[i] = -1;
+				if (node.isSymbol()) {
+					slots_[i] = names.indexOf(node.getSymbol()); /* unnamed symbols are kept as they are */
+				} else if (node.isUnary()) {
+					left_[i] = index.get(node.getChild());
+				} else if (node.isBinary()) {
+					left_[i] = index.get(node.getLeft());
+					right_[i] = index.get(node.getRight());
+				}
+			}
+		}
+
+		Expression instantiate(Expression... values) {
+			/* values are given in the order the placeholders were named */
+			Expression[] built = new Expression[nodes_.length];
+			for (int i = 0; i < nodes_.length; ++i) {
+				Expression node = nodes_[i];
+				if (slots_[i] >= 0) {
+					built[i] = values[slots_[i]];
+				} else if (left_[i] < 0) {
+					built[i] = node;
+				} else if (right_[i] < 0) {
+					built[i] = Expression.unary(node.getType(), built[left_[i]]);
+				} else {
+					built[i] = Expression.binary(node.getType(), built[left_[i]], built[right_[i]]);
+				}
+			}
+			return built[nodes_.length - 1];
+		}
+
+		private final Expression[] nodes_;
+		private final int[] left_;
+		private final int[] right_;
+		private final int[] slots_;
+	}
+
+	private final List<String> names_ = new ArrayList<String>();
+	private final List<Expression> constants_ = new ArrayList<Expression>();
+	private final Expression.Type[] types_;
+	private final String[] symbols_;
+	private final int[] slots_;
+	private final int placeholders_;
+	private final boolean[] numbers_;
+	private final Template template_;
+}
@@ -0,0 +1,85 @@
+package jsolve;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.List;
+
+public class Rules {
+	/* an ordered list of rules, indexed by a decision tree on the node types along each pattern.
+	 * the first rule added that matches an expression is the one that is applied */
+	static class Branch {
+		EnumMap<Expression.Type, Branch> children_ = new EnumMap<Expression.Type, Branch>(Expression.Type.class);
+		Branch any_; /* taken by a placeholder, which skips the whole subexpression */
+		List<Integer> rules_ = new ArrayList<Integer>();
+	}
+
+	Rules add(Rule rule) {
+		Branch branch = root_;
+		for (Expression.Type key : rule.getKeys()) {
+			Branch next = key == null ? branch.any_ : branch.children_.get(key);
+			if (next == null) {
+				next = new Branch();
+				if (key == null) {
+					branch.any_ = next;
+				} else {
+					branch.children_.put(key, next);
+				}
+			}
+			branch = next;
+		}
+		branch.rules_.add(rules_.size());
+		rules_.add(rule);
+		return this;
+	}
+
+	Expression rewrite(Expression expression) {
+		/* apply the first matching rule, or return the expression unchanged */
+		List<Integer> candidates = new ArrayList<Integer>();
+		Deque<Expression> pending = new ArrayDeque<Expression>();
+		pending.push(expression);
+		candidates(root_, pending, candidates);
+		Collections.sort(candidates);
+		for (Integer candidate : candidates) {
+			Expression result = rules_.get(candidate).apply(expression);
+			if (result != null) {
+				return result;
+			}
+		}
+		return expression;
+	}
+
+	private static void candidates(Branch branch, Deque<Expression> pending, List<Integer> candidates) {
+		/* follow every branch the node types allow, the depth is bounded by the size of the patterns */
+		if (pending.isEmpty()) {
+			candidates.addAll(branch.rules_);
+			return;
+		}
+		Expression next = pending.pop();
+		if (branch.any_ != null) {
+			candidates(branch.any_, pending, candidates);
+		}
+		Branch child = branch.children_.get(next.getType());
+		if (child != null) {
+			if (next.isUnary()) {
+				pending.push(next.getChild());
+			} else if (next.isBinary()) {
+				pending.push(next.getRight());
+				pending.push(next.getLeft());
+			}
+			candidates(child, pending, candidates);
+			if (next.isUnary()) {
+				pending.pop();
+			} else if (next.isBinary()) {
+				pending.pop();
+				pending.pop();
+			}
+		}
+		pending.push(next);
+	}
+
+	private final Branch root_ = new Branch();
+	private final List<Rule> rules_ = new ArrayList<Rule>();
+}
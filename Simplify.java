@@ -1,9 +1,25 @@
 package jsolve;
 
+import java.math.BigInteger;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
 
 public class Simplify {
+	static final int MAX_CONSTANT_BITS = 4096; /* integer powers larger than this are left unevaluated */
+	static volatile boolean parallel = false; /* fold the independent operands of large nodes as fork-join tasks */
+	static volatile int parallelThreshold = 2000; /* the smallest expression, in nodes, worth splitting */
+	static final Memo simplifications = new Memo(1 << 16);
+	static final Memo evaluations = new Memo(1 << 12);
+
 	static long gcd(long a, long b) {
 		if (b == 0) {
 			return a;
@@ -28,7 +44,7 @@ public class Simplify {
 				return Expression.multiply(expression.getRight(), exponent);
 			}
 		}
-		return new Expression("1");
+		return Expression.symbol("1");
 	}
 	
 	static Expression getNumerator(Expression expression) {
@@ -43,87 +59,27 @@ public class Simplify {
 		if (expression.getType().equals(Expression.Type.NODE_DIVIDE)) {
 			return expression.getRight();
 		} else {
-			return new Expression("1");
+			return Expression.symbol("1");
 		}
 	}
 	
-	Expression signSubstitute(Expression where, Expression with) {
-		if (with.getType().equals(Expression.Type.NODE_ADD)) {
-			return Substitution.substitute(where, new Expression("_s"), new Expression("1"));
-		} else if (with.getType().equals(Expression.Type.NODE_SUBTRACT)) { /* subtract instead */
-			return Substitution.substitute(where, new Expression("_s"), new Expression("-1"));
-		} else {
-			return where;
-		}
+	static Rules fractionSums() {
+		/* u +/- c/d = (ud +/- c) / d, a/b +/- v = (a +/- vb) / b and a/b +/- c/d = (ad +/- cb) / (bd) */
+		Expression plus = Expression.symbol("1");
+		Expression minus = Expression.symbol("-1");
+		return new Rules()
+			.add(new Rule("_u + _c/_d", "(_u*_d + _s*_c) / _d", "_s", plus).numbers("_u", "_c", "_d"))
+			.add(new Rule("_u - _c/_d", "(_u*_d + _s*_c) / _d", "_s", minus).numbers("_u", "_c", "_d"))
+			.add(new Rule("_a/_b + _v", "(_a + _s*_v*_b) / _b", "_s", plus).numbers("_a", "_b", "_v"))
+			.add(new Rule("_a/_b - _v", "(_a + _s*_v*_b) / _b", "_s", minus).numbers("_a", "_b", "_v"))
+			.add(new Rule("_a/_b + _c/_d", "(_a*_d + _s*_c*_b) / (_b * _d)", "_s", plus).numbers("_a", "_b", "_c", "_d"))
+			.add(new Rule("_a/_b - _c/_d", "(_a*_d + _s*_c*_b) / (_b * _d)", "_s", minus).numbers("_a", "_b", "_c", "_d"));
 	}
-	
-	Expression foldLeftFractionSum(Expression expression) {
-		/* a/b +/- v = (a +/- v*b) / b */
-		if (!expression.getLeft().getType().equals(Expression.Type.NODE_DIVIDE)) {
-			return expression;
-		}
-		
-		Double a = expression.getLeft().getLeft().getSymbolAsFloat();
-		Double b = expression.getLeft().getRight().getSymbolAsFloat();
-		Double v = expression.getRight().getSymbolAsFloat();
-		if (a == null || b == null || v == null) {
-			return expression;
-		}
 
-		Expression result = Parser.parse("(_a + _s*_v*_b) / _b");
-		result = Substitution.substitute(result, new Expression("_v"), expression.getRight());
-		result = Substitution.substitute(result, new Expression("_a"), expression.getLeft().getLeft());
-		result = Substitution.substitute(result, new Expression("_b"), expression.getLeft().getRight());
-		return signSubstitute(result, expression);
-	}
-	
-	Expression foldRightFractionSum(Expression expression) {
-		/* a/b +/- v = (a +/- v*b) / b */
-		if (!expression.getRight().getType().equals(Expression.Type.NODE_DIVIDE)) {
-			return expression;
-		}
-		
-		Double u = expression.getLeft().getSymbolAsFloat();
-		Double c = expression.getRight().getLeft().getSymbolAsFloat();
-		Double d = expression.getRight().getRight().getSymbolAsFloat();
-		if (u == null || c == null || d == null) {
-			return expression;
-		}
+	static final Rules fractionSums = fractionSums();
 
-		Expression result = Parser.parse("(_u*_d + _s*_c) / _d");
-		result = Substitution.substitute(result, new Expression("_u"), expression.getLeft());
-		result = Substitution.substitute(result, new Expression("_c"), expression.getRight().getLeft());
-		result = Substitution.substitute(result, new Expression("_d"), expression.getRight().getRight());
-		return signSubstitute(result, expression);
-	}
-	
 	Expression foldFractionSum(Expression expression) {
-		expression = foldLeftFractionSum(foldRightFractionSum(expression));
-		
-		if (!expression.getLeft().getType().equals(Expression.Type.NODE_DIVIDE)) {
-			return expression;
-		}
-		
-		if (!expression.getRight().getType().equals(Expression.Type.NODE_DIVIDE)) {
-			return expression;
-		}
-		
-		Double a = expression.getLeft().getLeft().getSymbolAsFloat();
-		Double b = expression.getLeft().getRight().getSymbolAsFloat();
-		Double c = expression.getRight().getLeft().getSymbolAsFloat();
-		Double d = expression.getRight().getRight().getSymbolAsFloat();
-	
-		/* a/b +/- c/d = (ad +/- cb) / (bd) */
-		if (a != null && b != null && c != null && d != null) {
-			Expression result = Parser.parse("(_a*_d + _s*_c*_b) / (_b * _d)");
-			result = Substitution.substitute(result, new Expression("_a"), expression.getLeft().getLeft());
-			result = Substitution.substitute(result, new Expression("_b"), expression.getLeft().getRight());
-			result = Substitution.substitute(result, new Expression("_c"), expression.getRight().getLeft());
-			result = Substitution.substitute(result, new Expression("_d"), expression.getRight().getRight());
-			return signSubstitute(result, expression);
-		}
-		
-		return expression;
+		return fractionSums.rewrite(expression);
 	}
 
 	Expression foldAddition(Expression lhs, Expression rhs) {
@@ -132,17 +88,18 @@ public class Simplify {
 		} else if (rhs.isZero()) {
 			return lhs; /* x + 0 = x */
 		}
+		Rational exactLeft = lhs.getSymbolAsRational();
+		Rational exactRight = rhs.getSymbolAsRational();
+		if (exactLeft != null && exactRight != null) {
+			return Expression.constant(exactLeft.add(exactRight));
+		}
 		Double left = lhs.getSymbolAsFloat();
 		Double right = rhs.getSymbolAsFloat();
 		if (left != null && right != null) {
-			return new Expression(left + right);
+			return Expression.constant(left + right);
 		}
 		Expression result = Expression.add(foldConstants(lhs), foldConstants(rhs));
-		Expression trial = foldFractionSum(result);
-		if (!trial.toString().equals(result.toString())) {
-			return trial;
-		}
-		return result;
+		return foldFractionSum(result); /* the same node when no rule applies */
 	}
 	
 	Expression foldSubtraction(Expression lhs, Expression rhs) {
@@ -150,28 +107,49 @@ public class Simplify {
 			return lhs; /* x - 0 = x */
 		} else if (lhs.isZero()) {
 			return Expression.negate(rhs); /* 0 - x = -x */
-		} else if (Canonicalizer.compare(lhs, rhs)) {
-			return new Expression("0"); /* x - x = 0 */
+		} else if (lhs.equals(rhs)) {
+			return Expression.symbol("0"); /* x - x = 0 */
+		}
+		Rational exactLeft = lhs.getSymbolAsRational();
+		Rational exactRight = rhs.getSymbolAsRational();
+		if (exactLeft != null && exactRight != null) {
+			return Expression.constant(exactLeft.subtract(exactRight));
 		}
 		Double left = lhs.getSymbolAsFloat();
 		Double right = rhs.getSymbolAsFloat();
 		if (left != null && right != null) {
-			return new Expression(left - right);
+			return Expression.constant(left - right);
 		}
 		Expression result = Expression.subtract(foldConstants(lhs), foldConstants(rhs));
-		Expression trial = foldFractionSum(result);
-		if (!trial.toString().equals(result.toString())) {
-			return trial;
-		}
-		return result;
+		return foldFractionSum(result); /* the same node when no rule applies */
 	}
 	
+	static Expression exactPower(Expression base, Rational lhs, Rational rhs, Expression.Type type) {
+		/* b^x * b^y or b^x / b^y in the form exactRoot gives, for a positive integer b and exact x and y */
+		Rational number = base.getSymbolAsRational();
+		if (number == null || !number.isInteger() || number.signum() <= 0 || lhs == null || rhs == null) {
+			return null;
+		}
+		switch (type) {
+		case NODE_MULTIPLY:
+			return exactRoot(number.getNumerator(), lhs.add(rhs));
+		case NODE_DIVIDE:
+			return exactRoot(number.getNumerator(), lhs.subtract(rhs));
+		default:
+			return null;
+		}
+	}
+
 	Expression foldExponents(Expression expression) {
 		Expression baseLhs = getBase(expression.getLeft());
 		Expression baseRhs = getBase(expression.getRight());
-		if (Canonicalizer.compare(baseLhs, baseRhs)) {
+		if (baseLhs.equals(baseRhs) && !baseLhs.isZero()) { /* 0 / 0 is not 0^0 */
 			Expression expLhs = getExponent(expression.getLeft());
 			Expression expRhs = getExponent(expression.getRight());
+			Expression exact = exactPower(baseLhs, getRational(expLhs), getRational(expRhs), expression.getType());
+			if (exact != null) {
+				return exact; /* 2 * 2^(1/2) stays as it is, rather than becoming 2^(3/2) */
+			}
 			switch (expression.getType()) {
 			case NODE_MULTIPLY: /* x^a * x^b = x^(a+b) */
 				Expression expSum = Expression.add(expLhs, expRhs);
@@ -197,7 +175,7 @@ public class Simplify {
 		Double lhsValue = lhs.getSymbolAsFloat();
 		if (lhsValue != null) {
 			if (lhsValue == 0) {
-				return new Expression("0"); /* 0 * x = 0 */
+				return Expression.symbol("0"); /* 0 * x = 0 */
 			} else if (lhsValue == 1) {
 				return rhs; /* 1 * x = x */
 			}
@@ -206,14 +184,19 @@ public class Simplify {
 		Double rhsValue = rhs.getSymbolAsFloat();
 		if (rhsValue != null) {
 			if (rhsValue == 0) {
-				return new Expression("0"); /* x * 0 = 0 */
+				return Expression.symbol("0"); /* x * 0 = 0 */
 			} else if (rhsValue == 1) {
 				return lhs; /* x * 1 = x */
 			}
 		}
 		
+		Rational exactLhs = lhs.getSymbolAsRational();
+		Rational exactRhs = rhs.getSymbolAsRational();
+		if (exactLhs != null && exactRhs != null) {
+			return Expression.constant(exactLhs.multiply(exactRhs));
+		}
 		if (lhsValue != null && rhsValue != null) {
-			return new Expression(lhsValue * rhsValue);
+			return Expression.constant(lhsValue * rhsValue);
 		}
 		
 		return Expression.multiply(foldConstants(lhs), foldConstants(rhs));
@@ -227,18 +210,19 @@ public class Simplify {
 		
 		Expression lhs = expression.getLeft();
 		Expression rhs = expression.getRight();
-		if (Canonicalizer.compare(lhs, rhs)) {
-			return new Expression("1"); /* x / x = 1 */
+		if (lhs.equals(rhs) && !rhs.isZero()) {
+			return Expression.symbol("1"); /* x / x = 1 */
 		}
 
-		if (lhs.isOne() && rhs.toString().equals("i")) { /* 1/i -> -i */
-			return Expression.negate(rhs);
+		Expression complex = foldComplex(expression);
+		if (complex != null) {
+			return complex; /* 1/i = -i, and any other quotient of complex constants */
 		}
 
-		Long lhsValue = lhs.getSymbolAsInteger();
-		Long rhsValue = rhs.getSymbolAsInteger();
+		Rational lhsValue = lhs.getSymbolAsRational();
+		Rational rhsValue = rhs.getSymbolAsRational();
 		
-		if (lhsValue != null && lhsValue == 0) {
+		if (lhsValue != null && lhsValue.signum() == 0 && !rhs.isZero()) {
 			return lhs; /* 0 / x = 0 */
 		}
 		
@@ -246,85 +230,180 @@ public class Simplify {
 			return Expression.divide(foldConstants(lhs), foldConstants(rhs));
 		}
 		
-		if (rhsValue == 1) {
+		if (rhsValue.equals(Rational.ONE)) {
 			return lhs; /* x / 1 = x */
 		}
 		
-		long product = lhsValue * rhsValue;
-		lhsValue = Math.abs(lhsValue);
-		rhsValue = Math.abs(rhsValue);
-
-		/* keep numbers rational */
-		long commonFactor = gcd(lhsValue, rhsValue);
-		lhsValue /= commonFactor;
-		rhsValue /= commonFactor;
-
-		lhs = new Expression(lhsValue.toString());
-		rhs = new Expression(rhsValue.toString());
-
-		Expression result = Expression.divide(lhs, rhs);
-		if (product < 0) {
-			result = Expression.negate(result);
+		Rational quotient = lhsValue.divide(rhsValue);
+		if (quotient == null) {
+			return expression; /* zero divide */
 		}
 
-		return result;
+		return Expression.constant(quotient); /* keep numbers rational */
 	}
 	
-	Expression exactExponentation(Double base, Double expNumerator, Double expDenominator) {
-		Expression exponent = Expression.divide(new Expression(expNumerator), new Expression(expDenominator));
-		Expression exponentation = Expression.exponentiate(new Expression(base), exponent);
+	Expression exactExponentation(Expression baseValue, Expression expNumValue, Expression expDenValue) {
+		Rational exactBase = baseValue.getSymbolAsRational();
+		Long power = expNumValue.getSymbolAsInteger();
+		if (exactBase != null && power != null && power > 0 && expDenValue.isOne()) {
+			if ((double)exactBase.bitLength() * power <= MAX_CONSTANT_BITS) {
+				return Expression.constant(exactBase.pow(power)); /* exact integer power */
+			}
+			return Expression.exponentiate(baseValue, expNumValue); /* too large to write out */
+		}
+		Rational exactNumerator = expNumValue.getSymbolAsRational();
+		Rational exactDenominator = expDenValue.getSymbolAsRational();
+		if (exactBase != null && exactNumerator != null && exactDenominator != null) {
+			/* exact operands are never rounded through doubles, a root that is not exact is left as it is */
+			Expression exponent = expDenValue.isOne() ? expNumValue : Expression.divide(expNumValue, expDenValue);
+			Expression exponentation = Expression.exponentiate(baseValue, exponent);
+			if (exactDenominator.signum() == 0 || exactBase.signum() <= 0) {
+				return exponentation;
+			}
+			Rational multiple = exactNumerator.divide(exactDenominator);
+			Expression numerator = exactRoot(exactBase.getNumerator(), multiple);
+			if (exactBase.isInteger()) {
+				return numerator == null ? exponentation : numerator;
+			}
+			Expression denominator = exactRoot(exactBase.getDenominator(), multiple);
+			if (numerator == null || denominator == null) {
+				return exponentation;
+			}
+			return Expression.divide(numerator, denominator); /* (a/b)^c = a^c/b^c */
+		}
+		Double base = baseValue.getSymbolAsFloat();
+		Double expNumerator = expNumValue.getSymbolAsFloat();
+		Double expDenominator = expDenValue.getSymbolAsFloat();
+		Expression exponent = Expression.divide(Expression.constant(expNumerator), Expression.constant(expDenominator));
+		Expression exponentation = Expression.exponentiate(Expression.constant(base), exponent);
 		if (expDenominator == 0) {
 			return exponentation; /* cannot simplify due to zero divide */
 		}
 		if (expNumerator == 0) {
-			return new Expression("1"); /* x^0 = 1 */
+			return Expression.symbol("1"); /* x^0 = 1 */
 		}
 		Double result = Math.floor(Math.pow(base, expNumerator/expDenominator));
 		if (Math.pow(result, expDenominator/expNumerator) == base) {
-			return new Expression(result);
+			return Expression.constant(result);
 		}
 		result = Math.floor(Math.pow(base, 1/expDenominator));
 		if (Math.pow(result, expDenominator) == base) { /* x^(a/b) -> [x^(1/b)]^a -> y^a */
-			return Expression.exponentiate(new Expression(result), new Expression(expNumerator));
+			return Expression.exponentiate(Expression.constant(result), Expression.constant(expNumerator));
 		}
 		result = Math.floor(Math.pow(base, expNumerator));
 		if (Math.pow(result, 1.0/expNumerator) == base) { /* x^(a/b) -> (x^a)^(1/b) -> y^(1/b) */
-			Expression denominator = Expression.divide(new Expression("1"), new Expression(expDenominator));
-			return Expression.exponentiate(new Expression(result), denominator);
+			Expression denominator = Expression.divide(Expression.symbol("1"), Expression.constant(expDenominator));
+			return Expression.exponentiate(Expression.constant(result), denominator);
 		}		
 		return exponentation; /* unable to simplify because an exact result could not be obtained */
 	}
 	
+	static final int MAX_TRIAL_DIVISOR = 1000; /* bases are only searched for small repeated factors */
+
+	static Expression exactRoot(BigInteger base, Rational exponent) {
+		/* b^(p/q) for a positive integer b, worked out exactly in the form k*m^(1/q). b is first written
+		 * as g^d with d as large as possible, so 27^(1/6) = 3^(1/2), then g^(p/q) = g^a * g^(r/q) with
+		 * r < q, and the q-th powers dividing g^r are taken out of the root. the same exponent always
+		 * gives the same form, so folding a product back together cannot undo it. null if too large */
+		if (exponent.signum() == 0) {
+			return Expression.symbol("1"); /* x^0 = 1 */
+		}
+		if (exponent.signum() < 0) {
+			Expression power = exactRoot(base, exponent.negate());
+			return power == null ? null : Expression.divide(Expression.symbol("1"), power);
+		}
+		BigInteger[] perfect = Rational.perfectPower(base);
+		BigInteger generator = perfect[0];
+		exponent = exponent.multiply(Rational.valueOf(perfect[1]));
+		if (exponent.getDenominator().bitLength() > 31 || exponent.getNumerator().bitLength() > 31) {
+			return null; /* not a root or power worth writing out */
+		}
+		int degree = exponent.getDenominator().intValue();
+		long whole = exponent.getNumerator().longValue() / degree;
+		int remainder = (int)(exponent.getNumerator().longValue() % degree);
+		if ((long)generator.bitLength() * Math.max(whole, remainder) > MAX_CONSTANT_BITS) {
+			return null;
+		}
+		BigInteger outside = generator.pow((int)whole);
+		if (remainder == 0) {
+			return Expression.constant(Rational.valueOf(outside)); /* an integer */
+		}
+		BigInteger inside = BigInteger.ONE;
+		BigInteger rest = generator.pow(remainder);
+		for (int divisor = 2; divisor <= MAX_TRIAL_DIVISOR; ++divisor) {
+			BigInteger d = BigInteger.valueOf(divisor);
+			if (d.pow(degree).compareTo(rest) > 0) {
+				break;
+			}
+			int multiplicity = 0;
+			while (rest.mod(d).signum() == 0) {
+				rest = rest.divide(d);
+				++multiplicity;
+			}
+			outside = outside.multiply(d.pow(multiplicity / degree));
+			inside = inside.multiply(d.pow(multiplicity % degree));
+		}
+		BigInteger restRoot = Rational.exactRoot(rest, degree);
+		if (restRoot != null) {
+			outside = outside.multiply(restRoot);
+		} else {
+			inside = inside.multiply(rest);
+		}
+		if (inside.equals(BigInteger.ONE)) {
+			return Expression.constant(Rational.valueOf(outside));
+		}
+		Expression radical = Expression.divide(Expression.symbol("1"), Expression.constant(Rational.valueOf(degree)));
+		Expression root = Expression.exponentiate(Expression.constant(Rational.valueOf(inside)), radical);
+		if (outside.equals(BigInteger.ONE)) {
+			return root;
+		}
+		return Expression.multiply(Expression.constant(Rational.valueOf(outside)), root);
+	}
+	
 	Expression foldExponential(Expression expression) {	
 		Expression exponent = fold(getExponent(expression));
 		Expression base = fold(getBase(expression));
 		
 		if (exponent.isZero()) {
-			return new Expression("1"); /* x^0 = 1 */
+			return Expression.symbol("1"); /* x^0 = 1 */
 		} else if (exponent.isOne()) {
 			return base; /* x^1 = x */
 		}
 
 		if (base.isZero()) {
-			return new Expression("0"); /* 0^x = 0 */
+			return Expression.symbol("0"); /* 0^x = 0 */
 		} else if (base.isOne()) {
 			return base; /* 1^x = 1 */
 		}
 		
+		Rational exactBase = base.getSymbolAsRational();
+		Rational exactExponent = getRational(exponent);
+		if (exactBase != null && exactBase.signum() > 0 && exactExponent != null) { /* 27^(-1/6) as well as 27^(1/6) */
+			Expression numerator = Expression.constant(exactExponent.numerator());
+			return exactExponentation(base, numerator, Expression.constant(exactExponent.denominator()));
+		}
 		Double baseValue = base.getSymbolAsFloat();
 		if (baseValue != null) { /* attempt to fold numeric constants */
 			if (baseValue < 0 && baseValue != -1) {
-				Expression lhs = Expression.exponentiate(new Expression("-1"), exponent);
-				Expression rhs = Expression.exponentiate(new Expression(Math.abs(baseValue)), exponent);
+				Expression lhs = Expression.exponentiate(Expression.symbol("-1"), exponent);
+				Expression rhs = Expression.exponentiate(base.getMagnitude(), exponent);
 				return Expression.multiply(foldExponential(lhs), foldExponential(rhs));
 			}
-			Double expNumValue = getNumerator(exponent).getSymbolAsFloat();
-			Double expDenValue = getDenominator(exponent).getSymbolAsFloat();
-			if (expNumValue != null && expDenValue != null) {
+			Expression expNumValue = getNumerator(exponent);
+			Expression expDenValue = getDenominator(exponent);
+			if (expNumValue.isNumber() && expDenValue.isNumber()) {
 				if (baseValue > 0) {
-					return exactExponentation(baseValue, expNumValue, expDenValue);
+					return exactExponentation(base, expNumValue, expDenValue);
 				} else if (baseValue == -1) {
-					Expression pi = new Expression("pi"); /* ln(-1) = pi*i */
+					Rational numerator = expNumValue.getSymbolAsRational();
+					Rational denominator = expDenValue.getSymbolAsRational();
+					Rational multiple = numerator == null || denominator == null ? null : numerator.divide(denominator);
+					Expression real = multiple == null ? null : sinPi(Rational.valueOf(1, 2).subtract(multiple));
+					Expression imaginary = multiple == null ? null : sinPi(multiple);
+					if (real != null && imaginary != null) { /* (-1)^q = cos(q*pi) + i*sin(q*pi), read from the table */
+						return Expression.add(real, Expression.multiply(Expression.symbol("i"), imaginary));
+					}
+					Expression pi = Expression.symbol("pi"); /* ln(-1) = pi*i */
 					Expression complexExponent = Expression.multiply(pi, exponent);
 					return Expression.exponentiate(complexExponent);
 				}
@@ -334,19 +413,17 @@ public class Simplify {
 		if (base.isSymbol()) {
 			if (base.getSymbol().equals("i")) {
 				Long power = exponent.getSymbolAsInteger();
-				if (power != null) { /* i^x = e^(ln(i)*x) = e^(pi/2*i*x) */
-					Expression halfPi = Expression.divide(new Expression("pi"), new Expression("2"));
-					return Expression.exponentiate(Expression.multiply(halfPi, new Expression(exponent.getSymbolAsFloat())));
+				if (power != null) { /* i^n repeats with period four */
+					return Complex.I.pow(Math.floorMod(power, 4)).toExpression();
 				}
 			} else if (base.getSymbol().equals("e")) {
-				List<Expression> exponentFactors = Iterator.getFactors(exponent, 5);
 				List<Expression> realFactors = new ArrayList<Expression>();
 				boolean imaginary = false;
-				for (Expression factor : exponentFactors) {
-					if (!imaginary && factor.toString().equals("i")) {
+				for (Iterator.Factors factors = new Iterator.Factors(exponent, 5); factors.next();) {
+					if (!imaginary && !factors.inverse_ && factors.factor_.isSymbol("i")) {
 						imaginary = true;
 					} else {
-						realFactors.add(factor);
+						realFactors.add(factors.getFactor());
 					}
 				}
 				if (imaginary) {
@@ -356,25 +433,20 @@ public class Simplify {
 			}
 		}
 		
-		List<Expression> factors = Iterator.getFactors(base, 0);
 		List<Expression> variables = new ArrayList<Expression>();
 		List<Expression> constants = new ArrayList<Expression>();
-		for (Expression factor : factors) {
-			if (factor.isSymbol()) {
-				try {
-					Double.parseDouble(factor.getSymbol());
-					constants.add(factor);
-					continue;
-				} catch (NumberFormatException e) {
-				}
+		for (Iterator.Factors factors = new Iterator.Factors(base); factors.next();) {
+			if (!factors.inverse_ && factors.factor_.isNumber()) {
+				constants.add(factors.factor_);
+				continue;
 			}
-			variables.add(factor);
+			variables.add(factors.getFactor());
 		}
 		
 		if (constants.size() == 0 || variables.size() == 0) {
 			if (getNumerator(base).isOne()) { /* (1/x)^n -> 1/x^n */
 				Expression denom = Expression.exponentiate(getDenominator(base), exponent);
-				return Expression.divide(new Expression("1"), denom);
+				return Expression.divide(Expression.symbol("1"), denom);
 			} else {
 				return Expression.exponentiate(base, exponent);
 			}
@@ -390,118 +462,210 @@ public class Simplify {
 	
 	Expression foldLogarithm(Expression lhs, Expression rhs) {
 		if (rhs.isOne()) { /* log_n(1) = 0 */
-			return new Expression("0");
-		} else if (Canonicalizer.compare(lhs, rhs)) {
-			return new Expression("1"); /* log_n(n) = 1 */
+			return Expression.symbol("0");
+		} else if (lhs.equals(rhs)) {
+			return Expression.symbol("1"); /* log_n(n) = 1 */
 		}
 		Double lhsValue = lhs.getSymbolAsFloat();
 		Double rhsValue = rhs.getSymbolAsFloat();
+		Rational lhsExact = lhs.getSymbolAsRational();
+		Rational rhsExact = rhs.getSymbolAsRational();
+		if (lhsExact != null && rhsExact != null && lhsExact.isInteger() && rhsExact.isInteger()) {
+			Rational exact = Rational.log(lhsExact.getNumerator(), rhsExact.getNumerator());
+			if (exact != null) {
+				return Expression.constant(exact); /* log_2(1024) = 10 and log_4(8) = 3/2 */
+			}
+		}
 		if (lhsValue != null && rhsValue != null) {
 			if (lhsValue >= 0) {
-				return new Expression(Math.log(rhsValue) / Math.log(lhsValue));
+				return Expression.constant(Math.log(rhsValue) / Math.log(lhsValue));
 			}
 		}
 		return Expression.logarithm(fold(lhs), fold(rhs));
 	}
 
 	Expression foldUnaryMinus(Expression arg) {
+		Rational exact = arg.getSymbolAsRational();
+		if (exact != null) {
+			return Expression.constant(exact.negate());
+		}
 		Double value = arg.getSymbolAsFloat();
 		if (value != null) { /* move the sign onto the constant */
-			return new Expression(-value);
+			return Expression.constant(-value);
 		}
 		return Expression.negate(foldConstants(arg));
 	}
 
-	Expression foldSin(Expression arg) {
-		String[][] table = {
-			{"0", "0"},
-			{"pi/3", "3^(1/2)/2"},
-			{"pi*2/3", "3^(1/2)/2"}
-		};
-		for (String[] pair : table) {
-			if (Canonicalizer.compare(Parser.parse(pair[0]), arg)) {
-				return Parser.parse(pair[1]);
-			}
-		}
-		Expression factor = Simplify.simplify(Expression.divide(arg, new Expression("pi")));
-		Long factorValue = factor.getSymbolAsInteger();
-		if (factorValue != null) {
-			return new Expression("0");
-		}
-		Expression halfPi = Expression.divide(new Expression("pi"), new Expression("2"));
-		factor = Simplify.simplify(Expression.divide(arg, halfPi));
-		factorValue = factor.getSymbolAsInteger();
-		if (factorValue != null) {
-			String[] values = {"0", "1", "0", "-1"};
-			int index = factorValue.intValue();
-			if (index < 0) {
-				index = 3 - (3 - index) % 4;
-				return new Expression(values[index]);
-			} else {
-				return new Expression(values[index%4]);
+	static Map<Rational, Expression> sineTable(String[][] pairs) {
+		/* exact sines of the angles k*pi/12, k*pi/10 and k*pi/8 in the first quadrant, parsed once */
+		Map<Rational, Expression> table = new HashMap<Rational, Expression>();
+		for (String[] pair : pairs) {
+			String[] angle = pair[0].split("/");
+			table.put(Rational.valueOf(Long.parseLong(angle[0]), Long.parseLong(angle[1])), Parser.parse(pair[1]));
+		}
+		return table;
+	}
+
+	static final Map<Rational, Expression> sines = sineTable(new String[][] {
+		{"0/1", "0"},
+		{"1/12", "(6^(1/2) - 2^(1/2))/4"},
+		{"1/10", "(5^(1/2) - 1)/4"},
+		{"1/8", "(2 - 2^(1/2))^(1/2)/2"},
+		{"1/6", "1/2"},
+		{"1/5", "(10 - 2*5^(1/2))^(1/2)/4"},
+		{"1/4", "2^(1/2)/2"},
+		{"3/10", "(5^(1/2) + 1)/4"},
+		{"1/3", "3^(1/2)/2"},
+		{"3/8", "(2 + 2^(1/2))^(1/2)/2"},
+		{"2/5", "(10 + 2*5^(1/2))^(1/2)/4"},
+		{"5/12", "(6^(1/2) + 2^(1/2))/4"},
+		{"1/2", "1"}
+	});
+
+	static Rational getPiMultiple(Expression arg) {
+		/* the rational c for which arg = c*pi, or null if arg has any other part */
+		Rational multiple = Rational.ZERO;
+		for (Iterator.Terms terms = new Iterator.Terms(arg); terms.next();) {
+			Rational coefficient = Rational.ONE;
+			int pi = 0;
+			for (Iterator.Factors factors = new Iterator.Factors(terms.term_); factors.next() && coefficient != null;) {
+				Rational value = factors.factor_.getSymbolAsRational();
+				if (value != null) {
+					coefficient = factors.inverse_ ? coefficient.divide(value) : coefficient.multiply(value);
+				} else if (!factors.inverse_ && factors.factor_.isSymbol("pi")) {
+					++pi;
+				} else {
+					return null;
+				}
 			}
+			if (coefficient == null || (pi != 1 && coefficient.signum() != 0) || pi > 1) {
+				return null; /* a zero divide, a number with no pi, or a power of pi */
+			}
+			multiple = terms.negative_ ? multiple.subtract(coefficient) : multiple.add(coefficient);
+		}
+		return multiple;
+	}
+
+	static Expression sinPi(Rational multiple) {
+		/* the exact value of sin(c*pi), using the period and the symmetries of each quadrant, or null */
+		BigInteger denominator = multiple.getDenominator();
+		Rational angle = Rational.valueOf(multiple.getNumerator().mod(denominator.shiftLeft(1)), denominator); /* in [0, 2) */
+		boolean negative = false;
+		if (angle.compareTo(Rational.ONE) >= 0) {
+			angle = angle.subtract(Rational.ONE); /* sin(x + pi) = -sin(x) */
+			negative = true;
+		}
+		if (angle.compareTo(Rational.valueOf(1, 2)) > 0) {
+			angle = Rational.ONE.subtract(angle); /* sin(pi - x) = sin(x) */
+		}
+		Expression value = sines.get(angle);
+		if (value == null || !negative || value.isZero()) {
+			return value;
+		}
+		Rational exact = value.getSymbolAsRational();
+		if (exact == null && value.getType().equals(Expression.Type.NODE_DIVIDE)) {
+			Rational numerator = value.getLeft().getSymbolAsRational();
+			Rational divisor = value.getRight().getSymbolAsRational();
+			exact = numerator == null || divisor == null ? null : numerator.divide(divisor);
+		}
+		return exact != null ? Expression.constant(exact.negate()) : Expression.negate(value);
+	}
+
+	static Expression foldComplex(Expression expression) {
+		/* a constant made of integers and i, folded to a + b*i in one step, or null for anything else */
+		if (!expression.contains("i") || expression.variables_.cardinality() != 1) {
+			return null;
+		}
+		Complex value = Complex.valueOf(expression);
+		return value == null ? null : value.toExpression();
+	}
+
+	Expression foldSin(Expression arg) {
+		Rational multiple = getPiMultiple(arg);
+		Expression exact = multiple == null ? null : sinPi(multiple);
+		if (exact != null) {
+			return exact;
 		}
 		Double value = arg.getSymbolAsFloat();
 		if (value != null) {
-			return new Expression(Math.sin(value));
+			return Expression.constant(Math.sin(value));
 		}
-		Expression result = new Expression(Expression.Type.NODE_SINE);
-		result.setChild(foldConstants(arg));
-		return result;
+		return Expression.unary(Expression.Type.NODE_SINE, foldConstants(arg));
 	}
-	
+
 	Expression foldCos(Expression arg) {
-		String[][] table = {
-			{"0", "1"},
-			{"pi/3", "1/2"},
-			{"pi*2/3", "-1/2"}
-		};
-		for (String[] pair : table) {
-			if (Canonicalizer.compare(Parser.parse(pair[0]), arg)) {
-				return Parser.parse(pair[1]);
-			}
-		}
-		Expression factor = Simplify.simplify(Expression.divide(arg, new Expression("pi")));
-		Long factorValue = factor.getSymbolAsInteger();
-		if (factorValue != null) {
-			if (factor.getSymbolAsInteger() % 2 == 0) {
-				return new Expression("1");
-			} else {
-				return new Expression("-1");
-			}
-		}
-		Expression halfPi = Expression.divide(new Expression("pi"), new Expression("2"));
-		factor = Simplify.simplify(Expression.divide(arg, halfPi));
-		factorValue = factor.getSymbolAsInteger();
-		if (factorValue != null) {
-			String[] values = {"1", "0", "-1", "0"};
-			int index = factorValue.intValue();
-			if (index < 0) {
-				index = 3 - (3 - index) % 4;
-				return new Expression(values[index]);
-			} else {
-				return new Expression(values[index%4]);
-			}
+		Rational multiple = getPiMultiple(arg);
+		Expression exact = multiple == null ? null : sinPi(Rational.valueOf(1, 2).subtract(multiple)); /* cos(x) = sin(pi/2 - x) */
+		if (exact != null) {
+			return exact;
 		}
 		Double value = arg.getSymbolAsFloat();
 		if (value != null) {
-			return new Expression(Math.cos(value));
+			return Expression.constant(Math.cos(value));
 		}
-		Expression result = new Expression(Expression.Type.NODE_COSINE);
-		result.setChild(foldConstants(arg));
-		return result;
+		return Expression.unary(Expression.Type.NODE_COSINE, foldConstants(arg));
 	}
 	
 	Expression foldLambertW(Expression arg) {
 		if (arg.isZero()) { /* W(0) = 0 */
-			return new Expression("0");
-		} else if (arg.toString().equals("e")) {
-			return new Expression("1"); /* W(e) = 1 */
+			return Expression.symbol("0");
+		} else if (arg.isSymbol("e")) {
+			return Expression.symbol("1"); /* W(e) = 1 */
 		}
 		return Expression.lambertW(foldConstants(arg));
 	}
 
+	static final int MAX_FACTORIAL = 512; /* 512! is just under MAX_CONSTANT_BITS */
+
+	Expression foldFactorial(Expression arg) {
+		Rational value = arg.getSymbolAsRational();
+		if (value != null && value.isInteger() && value.signum() >= 0 && value.compareTo(Rational.valueOf(MAX_FACTORIAL)) <= 0) {
+			return Expression.constant(Rational.valueOf(Rational.factorial(value.longValue().intValue())));
+		}
+		return Expression.unary(Expression.Type.NODE_FACTORIAL, foldConstants(arg));
+	}
+
+	Expression foldInverseFactorial(Expression arg) {
+		Rational value = arg.getSymbolAsRational();
+		if (value != null && value.isInteger()) {
+			Long n = Rational.inverseFactorial(value.getNumerator());
+			if (n != null) {
+				return Expression.constant(Rational.valueOf(n)); /* InverseFactorial(120) = 5 */
+			}
+		}
+		return Expression.unary(Expression.Type.NODE_FACTORIAL_INVERSE, foldConstants(arg));
+	}
+
 	Expression foldConstants(Expression expression) {
+		/* the children are folded before their parents with an explicit stack, so that each node finds
+		 * the results it recurses into already remembered and deep expressions do not overflow */
+		Deque<Expression> stack = new ArrayDeque<Expression>();
+		stack.push(expression);
+		while (!stack.isEmpty()) {
+			Expression top = stack.peek();
+			if (top.constants_ != null) {
+				stack.pop();
+				continue;
+			}
+			boolean ready = true;
+			if (top.isUnary() || (top.isBinary() && !top.getType().equals(Expression.Type.NODE_EXPONENTIATE)
+					&& !top.getType().equals(Expression.Type.NODE_LOGARITHM))) {
+				for (Expression child : top.isUnary() ? new Expression[] { top.getChild() } : new Expression[] { top.getLeft(), top.getRight() }) {
+					if (child.constants_ == null) {
+						stack.push(child);
+						ready = false;
+					}
+				}
+			}
+			if (ready) {
+				stack.pop();
+				top.constants_ = foldNodeConstants(top);
+			}
+		}
+		return expression.constants_;
+	}
+
+	Expression foldNodeConstants(Expression expression) {
 		switch (expression.getType()) {
 		case NODE_ADD:
 			return foldAddition(expression.getLeft(), expression.getRight());
@@ -525,60 +689,355 @@ public class Simplify {
 			return foldCos(expression.getChild());
 		case NODE_LAMBERTW:
 			return foldLambertW(expression.getChild());
+		case NODE_FACTORIAL:
+			return foldFactorial(expression.getChild());
+		case NODE_FACTORIAL_INVERSE:
+			return foldInverseFactorial(expression.getChild());
 		default:
 			return expression;
 		}
 	}
 	
+	static Rational getCoefficient(Expression term, List<Expression> rest) {
+		/* the product of the exact numeric factors of a term, the remaining factors are added to rest */
+		Rational coefficient = Rational.ONE;
+		for (Iterator.Factors factors = new Iterator.Factors(term); factors.next();) {
+			Rational value = factors.factor_.getSymbolAsRational();
+			Rational product = value == null ? null : factors.inverse_ ? coefficient.divide(value) : coefficient.multiply(value);
+			if (product == null) {
+				rest.add(factors.getFactor());
+			} else {
+				coefficient = product;
+			}
+		}
+		return coefficient;
+	}
+	
+	static Rational getRational(Expression expression) {
+		/* the exact value of a product or quotient of integers, such as 1/2 or -1*(1/2), or null */
+		Rational value = expression.getSymbolAsRational();
+		if (value != null) {
+			return value;
+		}
+		List<Expression> rest = new ArrayList<Expression>();
+		Rational coefficient = getCoefficient(expression, rest);
+		return rest.isEmpty() ? coefficient : null;
+	}
+	
 	Expression foldSum(List<Expression> terms) {
-		for (int i = 0; i < terms.size(); ++i) {
-			for (int j = i+1; j < terms.size(); ++j) {
-				List<Expression> twoTerms = new ArrayList<Expression>();
-				twoTerms.add(terms.get(i));
-				twoTerms.add(terms.get(j));
-				Expression sum = Iterator.listSum(twoTerms);
-				Expression simplified = foldConstants(sum);
-				if (!sum.toString().equals(simplified.toString())) {
-					/* rebuild the list with our simplified term  */
-					terms.set(i, simplified);
-					terms.remove(j);
-					if (terms.size() > 1) {
-						return foldSum(terms);
-					}
+		/* combine like terms in one pass: terms are bucketed by the product of their non-numeric factors
+		 * and the coefficients in each bucket are added, so numbers sum together and x - x cancels */
+		Map<Expression, Integer> buckets = new HashMap<Expression, Integer>();
+		List<Expression> keys = new ArrayList<Expression>();
+		List<Expression> firsts = new ArrayList<Expression>();
+		List<List<Expression>> rests = new ArrayList<List<Expression>>();
+		List<Rational> coefficients = new ArrayList<Rational>();
+		List<Integer> counts = new ArrayList<Integer>();
+		Double decimal = null;
+		int decimalBucket = -1;
+		for (Expression term : terms) {
+			if (term.isZero()) {
+				continue; /* x + 0 = x */
+			}
+			Expression key = Expression.symbol("1");
+			List<Expression> rest = new ArrayList<Expression>();
+			Rational coefficient;
+			if (term.isNumber() && term.getSymbolAsRational() == null) {
+				decimal = decimal == null ? term.getSymbolAsFloat() : decimal + term.getSymbolAsFloat();
+				coefficient = Rational.ZERO; /* decimals are summed apart, but kept in the bucket for numbers */
+			} else {
+				coefficient = getCoefficient(term, rest);
+				if (!rest.isEmpty()) {
+					key = Iterator.listProduct(rest);
 				}
 			}
+			Integer bucket = buckets.get(key);
+			if (bucket == null) {
+				buckets.put(key, keys.size());
+				keys.add(key);
+				firsts.add(term);
+				rests.add(rest);
+				coefficients.add(coefficient);
+				counts.add(1);
+			} else {
+				coefficients.set(bucket, coefficients.get(bucket).add(coefficient));
+				counts.set(bucket, counts.get(bucket) + 1);
+			}
 		}
-		return Iterator.listSum(terms);
+		if (decimal != null) {
+			decimalBucket = buckets.get(Expression.symbol("1"));
+		}
+		List<Expression> result = new ArrayList<Expression>();
+		for (int i = 0; i < keys.size(); ++i) {
+			Rational coefficient = coefficients.get(i);
+			if (i == decimalBucket) {
+				if (counts.get(i) > 1) {
+					result.add(Expression.constant(decimal + coefficient.doubleValue()));
+				} else {
+					result.add(firsts.get(i));
+				}
+			} else if (counts.get(i) == 1) {
+				result.add(firsts.get(i)); /* nothing to combine with */
+			} else if (coefficient.signum() == 0) {
+				continue;
+			} else if (keys.get(i).isOne()) {
+				result.add(Expression.constant(coefficient));
+			} else {
+				result.add(Iterator.listProduct(scale(coefficient, rests.get(i))));
+			}
+		}
+		return Iterator.listSum(result);
 	}
 	
 	Expression foldProduct(List<Expression> factors) {
-		for (int i = 0; i < factors.size(); ++i) {
-			for (int j = i+1; j < factors.size(); ++j) {
-				List<Expression> twoFactors = new ArrayList<Expression>();
-				twoFactors.add(factors.get(i));
-				twoFactors.add(factors.get(j));
-				Expression product = Iterator.listProduct(twoFactors);
-				Expression simplified = foldConstants(product);
-				if (!product.toString().equals(simplified.toString())) {
-					/* rebuild the list with our simplified factor */
-					factors.set(i, simplified);
-					factors.remove(j);
-					if (factors.size() > 1) {
-						return foldProduct(factors);
+		/* combine like factors in one pass: factors are bucketed by base so that their exponents can be
+		 * added, and numbers that are not also the base of a power are multiplied into one coefficient */
+		Set<Expression> bases = new HashSet<Expression>();
+		for (Expression factor : factors) {
+			Expression core = Iterator.removeRecipricol(factor);
+			if (core.getSymbolAsFloat() == null) {
+				bases.add(getBase(core));
+			}
+		}
+		Map<Expression, Integer> buckets = new HashMap<Expression, Integer>();
+		List<Expression> keys = new ArrayList<Expression>();
+		List<List<Expression>> members = new ArrayList<List<Expression>>();
+		Rational exact = Rational.ONE;
+		Double decimal = null;
+		boolean undefined = false;
+		int numbers = 0;
+		int coefficientBucket = -1;
+		for (Expression factor : factors) {
+			boolean inverse = Iterator.hasRecipricol(factor);
+			Expression core = Iterator.removeRecipricol(factor);
+			Double value = core.getSymbolAsFloat();
+			if (value != null && !bases.contains(core)) {
+				Rational number = core.getSymbolAsRational();
+				Rational product = number == null ? null : inverse ? exact.divide(number) : exact.multiply(number);
+				if (number != null && product == null) {
+					bases.add(core); /* a zero divide is left for foldDivision to report */
+					undefined = true;
+				} else {
+					if (number != null) {
+						exact = product;
+					} else {
+						decimal = (decimal == null ? 1.0 : decimal) * (inverse ? 1.0 / value : value);
+					}
+					if (numbers++ == 0) {
+						coefficientBucket = keys.size();
+						keys.add(null);
+						members.add(new ArrayList<Expression>());
+					}
+					members.get(coefficientBucket).add(factor);
+					continue;
+				}
+			}
+			Expression base = getBase(core);
+			Integer bucket = buckets.get(base);
+			if (bucket == null) {
+				bucket = keys.size();
+				buckets.put(base, bucket);
+				keys.add(base);
+				members.add(new ArrayList<Expression>());
+			}
+			members.get(bucket).add(factor);
+		}
+		if (undefined && exact.signum() == 0) {
+			return Iterator.listProduct(factors); /* 0 / 0 is left as it is, rather than taken for 0 */
+		}
+		List<Expression> result = new ArrayList<Expression>();
+		for (int i = 0; i < keys.size(); ++i) {
+			List<Expression> bucket = members.get(i);
+			if (bucket.size() == 1) {
+				if (i == coefficientBucket && bucket.get(0).isZero()) {
+					return Expression.symbol("0"); /* 0 * x = 0 */
+				}
+				result.add(bucket.get(0)); /* nothing to combine with */
+			} else if (i == coefficientBucket) {
+				if (decimal != null) {
+					Expression coefficient = Expression.constant(decimal * exact.doubleValue());
+					if (coefficient.isZero()) {
+						return Expression.symbol("0"); /* 0 * x = 0 */
 					}
+					result.add(coefficient);
+				} else if (exact.signum() == 0) {
+					return Expression.symbol("0"); /* 0 * x = 0 */
+				} else if (!exact.equals(Rational.ONE) || keys.size() == 1) {
+					result.addAll(scale(exact, new ArrayList<Expression>()));
+				}
+			} else {
+				Expression power = combinePowers(keys.get(i), bucket);
+				if (!power.isOne() || keys.size() == 1) {
+					result.add(power);
 				}
 			}
 		}
-		return Iterator.listProduct(factors);
+		return Iterator.listProduct(result);
+	}
+	
+	static List<Expression> scale(Rational coefficient, List<Expression> factors) {
+		/* the factors of a term with a rational coefficient, written as 2*x/3 rather than (2/3)*x */
+		List<Expression> scaled = new ArrayList<Expression>();
+		Rational numerator = coefficient.numerator();
+		if (!numerator.equals(Rational.ONE) || factors.isEmpty()) {
+			scaled.add(Expression.constant(numerator));
+		}
+		scaled.addAll(factors);
+		Rational denominator = coefficient.denominator();
+		if (!denominator.equals(Rational.ONE)) {
+			scaled.add(Expression.divide(Expression.symbol("1"), Expression.constant(denominator)));
+		}
+		return scaled;
+	}
+	
+	static Expression combinePowers(Expression base, List<Expression> factors) {
+		/* x^a * x^b / x^c = x^(a+b-c), worked out exactly when every exponent is an integer */
+		Rational exact = Rational.ZERO;
+		Expression numerator = null;
+		Expression denominator = null;
+		for (Expression factor : factors) {
+			boolean inverse = Iterator.hasRecipricol(factor);
+			Expression exponent = getExponent(Iterator.removeRecipricol(factor));
+			Rational value = getRational(exponent);
+			if (exact != null && value != null) {
+				exact = inverse ? exact.subtract(value) : exact.add(value);
+			} else {
+				exact = null;
+			}
+			if (inverse) {
+				denominator = denominator == null ? exponent : Expression.add(denominator, exponent);
+			} else {
+				numerator = numerator == null ? exponent : Expression.add(numerator, exponent);
+			}
+		}
+		Expression exactPower = exactPower(base, exact, Rational.ZERO, Expression.Type.NODE_MULTIPLY);
+		if (exactPower != null) {
+			return exactPower; /* a number keeps the form exactRoot gives its powers */
+		}
+		if (exact != null) {
+			if (exact.signum() == 0) {
+				return Expression.symbol("1"); /* x / x = 1 */
+			} else if (exact.equals(Rational.ONE)) {
+				return base;
+			} else if (exact.signum() < 0) {
+				Expression power = exact.equals(Rational.ONE.negate()) ? base : Expression.exponentiate(base, Expression.constant(exact.negate()));
+				return Expression.divide(Expression.symbol("1"), power);
+			}
+			return Expression.exponentiate(base, Expression.constant(exact));
+		}
+		if (numerator == null) {
+			return Expression.divide(Expression.symbol("1"), Expression.exponentiate(base, denominator));
+		} else if (denominator == null) {
+			return Expression.exponentiate(base, numerator);
+		}
+		return Expression.exponentiate(base, Expression.subtract(numerator, denominator));
 	}
 	
 	Expression fold(Expression expression) {
+		/* the operands a node folds are folded first with an explicit stack, so that deeply nested
+		 * expressions do not overflow: each node then finds the results it recurses into remembered */
 		if (expression == null) {
 			return null;
 		}
+		if (parallel && !expression.isSymbol() && expression.folded_ == null && expression.size() >= parallelThreshold) {
+			foldAll(getFoldOperands(expression));
+		}
+		Deque<Expression> stack = new ArrayDeque<Expression>();
+		stack.push(expression);
+		while (!stack.isEmpty()) {
+			Expression top = stack.peek();
+			if (top.isSymbol() || top.folded_ != null) {
+				stack.pop();
+				continue;
+			}
+			boolean ready = true;
+			for (Expression operand : getFoldOperands(top)) {
+				if (!operand.isSymbol() && operand.folded_ == null) {
+					stack.push(operand);
+					ready = false;
+				}
+			}
+			if (ready) {
+				stack.pop();
+				foldNode(top);
+			}
+		}
+		return expression.isSymbol() ? expression : expression.folded_;
+	}
+
+	void foldAll(List<Expression> operands) {
+		/* the operands of a node are independent, so they are folded on several cores, and the
+		 * stack in fold then finds each of them remembered */
+		FoldTask task = new FoldTask(operands, 0, operands.size());
+		if (ForkJoinTask.inForkJoinPool()) {
+			task.invoke();
+		} else {
+			ForkJoinPool.commonPool().invoke(task);
+		}
+	}
+
+	class FoldTask extends RecursiveAction {
+		/* folds a range of operands, halving it while both halves are still worth a task */
+		FoldTask(List<Expression> operands, int begin, int end) {
+			operands_ = operands;
+			begin_ = begin;
+			end_ = end;
+		}
+
+		protected void compute() {
+			long size = 0;
+			for (int i = begin_; i < end_; ++i) {
+				size += operands_.get(i).size();
+			}
+			if (end_ - begin_ > 1 && size >= parallelThreshold) {
+				int middle = (begin_ + end_) >>> 1;
+				invokeAll(new FoldTask(operands_, begin_, middle), new FoldTask(operands_, middle, end_));
+				return;
+			}
+			for (int i = begin_; i < end_; ++i) {
+				fold(operands_.get(i)); /* an operand large enough splits its own operands in turn */
+			}
+		}
+
+		private static final long serialVersionUID = 1L;
+		private final List<Expression> operands_;
+		private final int begin_;
+		private final int end_;
+	}
+
+	List<Expression> getFoldOperands(Expression expression) {
+		/* the subexpressions foldNode folds before it can fold this one */
+		Expression normalized = Collector.normalizeExponents(expression);
+		List<Expression> terms = Iterator.getTerms(normalized);
+		if (terms.size() > 1) {
+			return terms;
+		}
+		List<Expression> factors = Iterator.getFactors(normalized, 0);
+		if (factors.size() > 1) {
+			return factors;
+		}
+		List<Expression> operands = new ArrayList<Expression>();
+		if (expression.isUnary()) {
+			operands.add(expression.getChild());
+		} else if (expression.getType().equals(Expression.Type.NODE_EXPONENTIATE)
+				|| expression.getType().equals(Expression.Type.NODE_LOGARITHM)) {
+			operands.add(expression.getLeft());
+			operands.add(expression.getRight());
+		}
+		operands.remove(expression);
+		return operands;
+	}
+
+	Expression foldNode(Expression expression) {
+		Expression folded = expression.folded_;
+		if (folded != null) {
+			return folded; /* fold depends only on the node, so an unchanged subtree is never folded twice */
+		}
 		
-		if (expression.isSymbol()) {
-			return expression;
+		Expression complex = foldComplex(expression);
+		if (complex != null) {
+			expression.folded_ = complex;
+			return complex;
 		}
 	
 		Expression result = Collector.normalizeExponents(expression);
@@ -602,38 +1061,102 @@ public class Simplify {
 		}
 		
 		/* recurse into other types of operator */
-		result.setChild(fold(result.getChild()));
-		return foldConstants(result);
+		if (result.isUnary()) {
+			result = Expression.unary(result.getType(), fold(result.getChild()));
+		}
+		result = foldConstants(result);
+		expression.folded_ = result;
+		return result;
 	}
 
 	Expression simplifyExpression(Expression expression) {	
-		/* iterate while the expression keeps changing */
-		String hash = Canonicalizer.toString(expression);
+		/* iterate while the expression keeps changing, every step along the way leads to the same result */
+		Expression simplified = expression.simplified_;
+		if (simplified != null) {
+			return simplified;
+		}
+		List<Expression> steps = new ArrayList<Expression>();
+		Fixpoint fixpoint = new Fixpoint(expression);
 		while (true) {
-			expression = fold(expression);
-			String newHash = Canonicalizer.toString(expression);
-			if (hash.equals(newHash)) {
+			steps.add(expression);
+			Expression next = fold(expression);
+			if (next == expression) {
+				break; /* exactly fixed, so the canonical forms need not be compared */
+			}
+			if (!fixpoint.next(next)) {
+				expression = fixpoint.getResult();
 				break;
 			}
-			hash = newHash;
+			expression = next;
+		}
+		for (Expression step : steps) {
+			step.simplified_ = expression;
 		}
 		return expression;
 	}
 	
 	static Expression simplify(Expression expression) {
-		Simplify simplify = new Simplify();
-		Expression result = expression.copy();
-		result = simplify.simplifyExpression(result);
+		/* a node remembers its own result, the shared table finds it for the same tree reordered or
+		 * built again after the first was collected */
+		Expression result = expression.simplified_;
+		if (result != null) {
+			return result;
+		}
+		result = simplifications.get(expression);
+		if (result == null) {
+			Simplify simplify = new Simplify();
+			result = simplify.simplifyExpression(expression);
+			simplifications.put(expression, result);
+		}
+		expression.simplified_ = result;
 		return result;
 	}
 	
 	static Expression evaluate(Expression expression) {
-		Expression result = Simplify.simplify(expression);
+		Expression result = evaluations.get(expression);
+		if (result != null) {
+			return result;
+		}
+		result = evaluateRational(expression);
+		if (result != null) {
+			evaluations.put(expression, result);
+			return result;
+		}
+		result = Simplify.simplify(expression);
 		result = Expander.expand(result);
 		result = Collector.collect(result);
 		result = Simplify.simplify(result);
+		evaluations.put(expression, result);
 		return result;
 	}
 	
+	static Expression evaluateRational(Expression expression) {
+		/* purely algebraic input is brought to a quotient of polynomials in one pass, common factors are
+		 * cancelled and the quotient is written out. null if the input is not algebraic, grows past
+		 * RationalFunction.TERM_LIMIT or may keep a common factor in several variables, and the generic
+		 * rewrites are left to it */
+		SparsePolynomial.Variables variables = new SparsePolynomial.Variables();
+		RationalFunction fraction = RationalFunction.valueOf(expression, variables);
+		if (fraction == null) {
+			return null;
+		}
+		RationalFunction reduced = fraction.reduce();
+		if (!reduced.isLowest()) {
+			return null; /* (a+b)/(a+b)^2 is only cancelled by the generic rewrites */
+		}
+		Rational constant = reduced.getConstant();
+		return constant != null ? Expression.constant(constant) : reduced.toExpression(variables);
+	}
+
+	static Expression saturate(Expression expression) {
+		/* search every rewrite at once with an e-graph, rather than folding in a fixed order */
+		return saturate(expression, EGraph.NODE_LIMIT, EGraph.ITERATION_LIMIT);
+	}
+	
+	static Expression saturate(Expression expression, int nodeLimit, int iterationLimit) {
+		Expression result = Simplify.simplify(expression);
+		return EGraph.simplify(result, nodeLimit, iterationLimit);
+	}
+	
 	List<Expression> identities;
 }
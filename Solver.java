@@ -1,9 +1,9 @@
 package jsolve;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
+import java.util.Set;
 
 public class Solver {
 	static class Equation {
@@ -20,7 +20,7 @@ public class Solver {
 		}
 		
 		void setLeft(Expression left) {
-			left_ = left.copy();
+			left_ = left;
 		}
 		
 		Expression getRight() {
@@ -28,7 +28,7 @@ public class Solver {
 		}
 		
 		void setRight(Expression right) {
-			right_ = right.copy();
+			right_ = right;
 		}
 	
 		Expression left_;
@@ -48,7 +48,7 @@ public class Solver {
 	
 		/* f(x) = y -> f(x) - y = 0 */
 		Equation equation = new Equation();
-		equation.setRight(new Expression("0"));
+		equation.setRight(Expression.symbol("0"));
 		equation.setLeft(Expression.subtract(expression.getLeft(), expression.getRight()));
 	
 		List<Expression> results = new ArrayList<Expression>();
@@ -96,21 +96,19 @@ public class Solver {
 		
 		/* simplify the solutions and filter duplicates */
 		List<Expression> solutions = new ArrayList<Expression>();
-		Map<String, Boolean> duplicates = new HashMap<String, Boolean>();
+		Set<Expression> duplicates = new HashSet<Expression>();
 		for (int i = 0; i < results.size(); ++i) {
 			Expression solution = results.get(i);
 			solution = Simplify.simplify(solution);
 			if (solution.isDegenerate()) {
 				continue; /* solution contains zero divide */
 			}
-			Expression sub = Substitution.substitute(expression, new Expression("x"), solution);
+			Expression sub = Substitution.substitute(expression, Expression.symbol("x"), solution);
 			if (sub.isDegenerate()) {
 				continue; /* solution causes zero divide */
 			}
-			String hash = Canonicalizer.toString(solution);
-			if (duplicates.get(hash) == null) {
+			if (duplicates.add(solution)) {
 				solutions.add(solution);
-				duplicates.put(hash, true);
 			}
 		}
 		
@@ -124,7 +122,7 @@ public class Solver {
 		Expression subexpression = Substitution.candidate(lhs, variable);
 		if (subexpression != null) {
 			String newVariable = Substitution.allocateVariable(lhs);
-			Expression substitution = Substitution.substitute(lhs, subexpression, new Expression(newVariable));
+			Expression substitution = Substitution.substitute(lhs, subexpression, Expression.symbol(newVariable));
 			substitution = Expression.equals(substitution, rhs);
 			List<Expression> solutions = Solver.solve(substitution, newVariable);
 			for (Expression solution : solutions ) {
@@ -138,14 +136,15 @@ public class Solver {
 		/* solve for the factors independently f(x)*g(x)*h(x) = 0 */
 		rhs = Simplify.simplify(rhs);
 		if (rhs.isZero()) {
-			List<Expression> factors = Iterator.getFactors(lhs, 0);
+			Iterator.Factors factors = new Iterator.Factors(lhs);
 			if (factors.size() > 1) {
-				for (Expression factor : factors) {
+				while (factors.next()) {
+					Expression factor = factors.getFactor();
 					if (factor.contains(variable)) {
-						Expression equation = Expression.equals(factor, new Expression("0"));
+						Expression equation = Expression.equals(factor, Expression.symbol("0"));
 						List<Expression> solutions = Solver.solve(equation, variable);
 						for (Expression solution : solutions ) {
-							results.add(new Equation(new Expression(variable), solution));
+							results.add(new Equation(Expression.symbol(variable), solution));
 						}
 					}
 				}
@@ -184,7 +183,7 @@ public class Solver {
 		
 		Expression rationalSolve = solveRational(lhs, rhs, variable);
 		if (rationalSolve != null) {
-			results.add(new Equation(rationalSolve, new Expression("0")));
+			results.add(new Equation(rationalSolve, Expression.symbol("0")));
 			return results;
 		}
 		
@@ -198,9 +197,9 @@ public class Solver {
 		
 		Expression lambertWSolve = solveLambertW(Expression.subtract(lhs, rhs), variable);
 		if (lambertWSolve != null) {
-			lambertWSolve = Expression.subtract(new Expression(variable), lambertWSolve);
+			lambertWSolve = Expression.subtract(Expression.symbol(variable), lambertWSolve);
 			if (isSolvable(lambertWSolve, variable)) {
-				results.add(new Equation(lambertWSolve, new Expression("0")));
+				results.add(new Equation(lambertWSolve, Expression.symbol("0")));
 				return results;
 			}
 		}
@@ -224,7 +223,7 @@ public class Solver {
 			if (factored == null) {
 				return results;
 			} else {
-				results.add(new Equation(factored, new Expression("0")));
+				results.add(new Equation(factored, Expression.symbol("0")));
 				return results;
 			}
 		}
@@ -232,9 +231,9 @@ public class Solver {
 		/* if necessary, this substitution will eliminate the n-1 degree term */
 		Expression term = polynomial.getCoefficient(degree - 1);		
 		if (term != null) {
-			term = Expression.divide(term, new Expression(degree.toString()));
+			term = Expression.divide(term, Expression.symbol(degree.toString()));
 			Expression newVariable = Expression.subtract(polynomial.getVariable(), term);
-			Expression newExpression = Substitution.substitute(polynomial.getExpression(), new Expression(variable), newVariable);
+			Expression newExpression = Substitution.substitute(polynomial.getExpression(), Expression.symbol(variable), newVariable);
 			newExpression = Simplify.simplify(newExpression);
 			newExpression = Expander.expand(newExpression, variable);
 			newExpression = Collector.collect(newExpression, variable);
@@ -258,18 +257,20 @@ public class Solver {
 			if (term != null) { /* reverse the substitution performed above */
 				solution = Expression.add(solution, term);
 			}
-			results.add(new Equation(new Expression(variable), solution));
+			results.add(new Equation(Expression.symbol(variable), solution));
 		}
 
 		return results;
 	}
 	
+	static final Rule.Template completeSquare = new Rule.Template("(_x + _a/2)^2 - (_a/2)^2", "_a", "_x");
+	static final Rule.Template vietaSubstitution = new Rule.Template("_x - _a/3*_x^(-1)", "_a");
+	static final Expression vietaDenominator = Parser.parse("_x^3");
+
 	static Expression solveQuadratic(Polynomial polynomial, String variable) {
 		/* complete the square */
 		Expression linearTerm = polynomial.getCoefficient(1);
-		Expression result = Parser.parse("(_x + _a/2)^2 - (_a/2)^2");
-		result = Substitution.substitute(result, new Expression("_a"), linearTerm);
-		result = Substitution.substitute(result, new Expression("_x"), polynomial.getVariable());
+		Expression result = completeSquare.instantiate(linearTerm, polynomial.getVariable());
 		Expression constantTerm = polynomial.getCoefficient(0);
 		if (constantTerm != null) {
 			result = Expression.add(result, constantTerm);
@@ -280,7 +281,7 @@ public class Solver {
 		Expression expanded = Expander.expand(result, variable);
 		expanded = Collector.collect(expanded, variable);
 		expanded = Simplify.simplify(expanded);
-		if (Canonicalizer.compare(original, expanded)) {
+		if (original.equals(expanded)) {
 			return result; /* it worked */
 		}
 
@@ -290,19 +291,17 @@ public class Solver {
 	static List<Expression> solveCubic(Polynomial polynomial, String variable) {
 		/* make Vieta's substitution */
 		Expression linear = polynomial.getCoefficient(1);
-		Expression sub = Parser.parse("_x - _a/3*_x^(-1)");
-		sub = Substitution.substitute(sub, new Expression("_a"), linear);
+		Expression sub = vietaSubstitution.instantiate(linear);
 		Expression result = Substitution.substitute(polynomial.getExpression(), polynomial.getVariable(), sub);
 		
 		/* clearing the denominator turns this into a quadratic in x^3 */
-		Expression x3 = Parser.parse("_x^3");
-		result = Expression.multiply(result, x3);
+		result = Expression.multiply(result, vietaDenominator);
 		
 		/* fold the expression back into polynomial form */
 		result = Simplify.simplify(result);
 		result = Expander.expand(result, "_x");
 		result = Collector.collect(result, "_x");
-		result = Substitution.substitute(result, new Expression("_x"), polynomial.getVariable());
+		result = Substitution.substitute(result, Expression.symbol("_x"), polynomial.getVariable());
 		result = Simplify.simplify(result);
 		result = Expander.expand(result, "_x");
 		result = Simplify.simplify(result);
@@ -319,12 +318,12 @@ public class Solver {
 			result = solveQuadratic(polynomial, variable);
 		}
 
-		result = Expression.equals(result, new Expression("0"));
+		result = Expression.equals(result, Expression.symbol("0"));
 		List<Expression> roots = Solver.solve(result, variable);
 		List<Expression> solutions = new ArrayList<Expression>();
 		for (Expression root : roots) {
 			/* reverse Vieta's substitution */
-			solutions.add(Substitution.substitute(sub, new Expression("_x"), root));
+			solutions.add(Substitution.substitute(sub, Expression.symbol("_x"), root));
 		}
 
 		return solutions;
@@ -364,10 +363,9 @@ public class Solver {
 				return null;
 			}
 			newRhs = Expression.multiply(newRhs, denominator);
-			List<Expression> terms = Iterator.getTerms(lhs);
 			List<Expression> newTerms = new ArrayList<Expression>();
-			for (Expression term : terms) {
-				newTerms.add(Expression.multiply(term, denominator));
+			for (Iterator.Terms terms = new Iterator.Terms(lhs); terms.next();) {
+				newTerms.add(Expression.multiply(terms.getTerm(), denominator));
 			}
 			newLhs = Iterator.listSum(newTerms);
 			newLhs = Simplify.simplify(newLhs);
@@ -381,15 +379,15 @@ public class Solver {
 		result = Simplify.simplify(result);
 		boolean normalize = false;
 		List<Expression> newTerms = new ArrayList<Expression>();
-		List<Expression> terms = Iterator.getTerms(result);
-		for (Expression term : terms) {
-			if (Iterator.hasFactor(term, new Expression(variable))) {
-				Expression norm = Expression.divide(term, new Expression(variable));
+		for (Iterator.Terms terms = new Iterator.Terms(result); terms.next();) {
+			Expression term = terms.getTerm();
+			if (Iterator.hasFactor(term, Expression.symbol(variable))) {
+				Expression norm = Expression.divide(term, Expression.symbol(variable));
 				norm = Simplify.simplify(norm);
-				if (Iterator.hasFactor(norm, new Expression(variable))) {
+				if (Iterator.hasFactor(norm, Expression.symbol(variable))) {
 					return null; /* failed to eliminate factor */
 				}
-				if (!Simplify.getExponent(norm).toString().equals(variable)) {
+				if (!Simplify.getExponent(norm).isSymbol(variable)) {
 					if (normalize) {
 						return null; /* unable to solve */
 					}
@@ -403,21 +401,21 @@ public class Solver {
 		Expression coefficient = newTerms.get(0);
 		Expression base = Simplify.getBase(newTerms.get(1));
 		Expression exponent = Simplify.getExponent(newTerms.get(1));
-		if (!exponent.toString().equals(variable)) {
+		if (!exponent.isSymbol(variable)) {
 			coefficient = newTerms.get(1);
 			base = Simplify.getBase(newTerms.get(0));
 			exponent = Simplify.getExponent(newTerms.get(0));
-			if (!exponent.toString().equals(variable)) {
+			if (!exponent.isSymbol(variable)) {
 				return null; /* unable to solve */
 			}
 		}
 		if (normalize) { /* a^x=b*x -> a^x/x=b -> x/a^x=1/b -> -u=x and u*a^u=-1/b */
-			coefficient = Expression.divide(new Expression("1"), coefficient);
+			coefficient = Expression.divide(Expression.symbol("1"), coefficient);
 		} else { /* we actually deal with a^x-b*x, not a^x=b*x */
 			coefficient = Expression.negate(coefficient);
 		}
 		/* u*a^u=c -> u*e^[ln(a)*u]=c -> ln(a)*u*e^[ln(a)*u]=ln(a)*c */
-		Expression logBase = Expression.logarithm(new Expression("e"), base);
+		Expression logBase = Expression.logarithm(Expression.symbol("e"), base);
 		coefficient = Expression.multiply(coefficient, logBase);
 		/* k*x*e^(k*x)=c -> x=W(c)/k */
 		result = Expression.lambertW(coefficient);
@@ -446,14 +444,14 @@ public class Solver {
 			break;
 		case NODE_EXPONENTIATE: /* x ^ a = b -> x = b ^ 1/a */
 			Long exponent = lhs.getRight().getSymbolAsInteger();
-			Expression inverse = Expression.divide(new Expression("1"), lhs.getRight());
+			Expression inverse = Expression.divide(Expression.symbol("1"), lhs.getRight());
 			expression = Expression.exponentiate(rhs, inverse);
 			if (exponent == null) {
 				results.add(expression);
 			} else {
 				for (Long i = new Long(1); i <= exponent; ++i) {
-					Expression denominator = new Expression(i.toString());
-					Expression pi2 = Expression.multiply(new Expression("2"), new Expression("pi"));
+					Expression denominator = Expression.symbol(i.toString());
+					Expression pi2 = Expression.multiply(Expression.symbol("2"), Expression.symbol("pi"));
 					Expression theta = Expression.divide(pi2, lhs.getRight());
 					Expression root = Expression.exponentiate(Expression.exponentiate(theta), denominator);
 					results.add(Expression.multiply(expression, root));
@@ -483,9 +481,7 @@ public class Solver {
 			results.add(Expression.divide(lhs.getLeft(), rhs));
 			break;
 		case NODE_EXPONENTIATE: /* a ^ x = b -> x = log_a(b) */
-			expression = new Expression(Expression.Type.NODE_LOGARITHM);
-			expression.setLeft(lhs.getLeft());
-			expression.setRight(rhs);
+			expression = Expression.logarithm(lhs.getLeft(), rhs);
 			results.add(expression);
 			break;
 		default:
@@ -503,13 +499,11 @@ public class Solver {
 			results.add(expression);
 			break;
 		case NODE_MINUS: /* -x = b -> x = -b */
-			expression = new Expression(Expression.Type.NODE_MINUS);
-			expression.setChild(rhs);
+			expression = Expression.unary(Expression.Type.NODE_MINUS, rhs);
 			results.add(expression);
 			break;
 		case NODE_FACTORIAL: /* x! = b -> x = InverseFactorial(b) */
-			expression = new Expression(Expression.Type.NODE_FACTORIAL_INVERSE);
-			expression.setChild(rhs);
+			expression = Expression.unary(Expression.Type.NODE_FACTORIAL_INVERSE, rhs);
 			results.add(expression);
 			break;
 		default:
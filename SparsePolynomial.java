@@ -0,0 +1,453 @@
+package jsolve;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+public class SparsePolynomial {
+	/* a polynomial in several variables with exact rational coefficients, held as a map from monomials
+	 * to coefficients so that like terms combine by hashing. variables are numbered by a Variables table
+	 * shared by every polynomial taking part in one computation */
+	static final int FIELD_BITS = 16;
+	static final int FIELDS = 64 / FIELD_BITS; /* exponents packed into each long */
+	static final long FIELD_MASK = (1L << FIELD_BITS) - 1;
+	static final long HIGH_BITS = 0x8000800080008000L; /* the top bit of every field */
+	static final int MAX_DEGREE = (1 << (FIELD_BITS - 1)) - 1; /* so the sum of two exponents never carries */
+
+	static final class Variables {
+		/* interns the expressions that stand for variables, numbered in the order they are first seen */
+		int indexOf(Expression variable) {
+			Integer index = index_.get(variable);
+			if (index == null) {
+				index = variables_.size();
+				index_.put(variable, index);
+				variables_.add(variable);
+			}
+			return index;
+		}
+
+		Expression get(int index) {
+			return variables_.get(index);
+		}
+
+		int size() {
+			return variables_.size();
+		}
+
+		private final Map<Expression, Integer> index_ = new HashMap<Expression, Integer>();
+		private final List<Expression> variables_ = new ArrayList<Expression>();
+	}
+
+	static final class Monomial implements Comparable<Monomial> {
+		/* a product of variables to non-negative powers, the exponent of variable n is held in field
+		 * n % FIELDS of word n / FIELDS. trailing zero words are dropped so equal monomials are equal arrays */
+		static final Monomial ONE = new Monomial(new long[0]);
+
+		private Monomial(long[] words) {
+			int length = words.length;
+			while (length > 0 && words[length - 1] == 0) {
+				--length;
+			}
+			words_ = length == words.length ? words : Arrays.copyOf(words, length);
+			hash_ = Arrays.hashCode(words_);
+		}
+
+		static Monomial variable(int index, int degree) {
+			long[] words = new long[index / FIELDS + 1];
+			words[index / FIELDS] = (long)degree << ((index % FIELDS) * FIELD_BITS);
+			return new Monomial(words);
+		}
+
+		int degree(int index) {
+			int word = index / FIELDS;
+			if (word >= words_.length) {
+				return 0;
+			}
+			return (int)((words_[word] >>> ((index % FIELDS) * FIELD_BITS)) & FIELD_MASK);
+		}
+
+		int variables() {
+			/* one more than the highest variable that appears */
+			return words_.length * FIELDS;
+		}
+
+		boolean isOne() {
+			return words_.length == 0;
+		}
+
+		Monomial multiply(Monomial other) {
+			/* exponents are added a word at a time, or null if one would no longer fit in its field */
+			long[] words = Arrays.copyOf(words_, Math.max(words_.length, other.words_.length));
+			for (int i = 0; i < other.words_.length; ++i) {
+				words[i] += other.words_[i];
+				if ((words[i] & HIGH_BITS) != 0) {
+					return null;
+				}
+			}
+			return new Monomial(words);
+		}
+
+		boolean divides(Monomial other) {
+			/* every field of other is at least the same field here: subtracting from other with the top
+			 * bits set leaves the top bit of each field set exactly where no borrow was needed */
+			if (words_.length > other.words_.length) {
+				return false;
+			}
+			for (int i = 0; i < words_.length; ++i) {
+				if ((((other.words_[i] | HIGH_BITS) - words_[i]) & HIGH_BITS) != HIGH_BITS) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		Monomial divide(Monomial other) {
+			/* only meaningful when other divides this monomial */
+			long[] words = Arrays.copyOf(words_, words_.length);
+			for (int i = 0; i < other.words_.length; ++i) {
+				words[i] -= other.words_[i];
+			}
+			return new Monomial(words);
+		}
+
+		Monomial gcd(Monomial other) {
+			/* the smaller exponent of every variable */
+			long[] words = new long[Math.min(words_.length, other.words_.length)];
+			for (int i = 0; i < words.length; ++i) {
+				for (int field = 0; field < FIELDS; ++field) {
+					int shift = field * FIELD_BITS;
+					long a = (words_[i] >>> shift) & FIELD_MASK;
+					long b = (other.words_[i] >>> shift) & FIELD_MASK;
+					words[i] |= Math.min(a, b) << shift;
+				}
+			}
+			return new Monomial(words);
+		}
+
+		public int compareTo(Monomial other) {
+			/* lexicographic on the exponents, the variable seen first counts most */
+			int variables = Math.max(variables(), other.variables());
+			for (int i = 0; i < variables; ++i) {
+				int difference = degree(i) - other.degree(i);
+				if (difference != 0) {
+					return difference;
+				}
+			}
+			return 0;
+		}
+
+		public boolean equals(Object other) {
+			return other instanceof Monomial && Arrays.equals(words_, ((Monomial)other).words_);
+		}
+
+		public int hashCode() {
+			return hash_;
+		}
+
+		private final long[] words_;
+		private final int hash_;
+	}
+
+	SparsePolynomial() {
+		terms_ = new HashMap<Monomial, Rational>();
+	}
+
+	private SparsePolynomial(Map<Monomial, Rational> terms) {
+		terms_ = terms;
+	}
+
+	static SparsePolynomial constant(Rational value) {
+		SparsePolynomial result = new SparsePolynomial();
+		result.addTerm(Monomial.ONE, value);
+		return result;
+	}
+
+	static SparsePolynomial variable(int index) {
+		SparsePolynomial result = new SparsePolynomial();
+		result.addTerm(Monomial.variable(index, 1), Rational.ONE);
+		return result;
+	}
+
+	int size() {
+		return terms_.size();
+	}
+
+	boolean isZero() {
+		return terms_.isEmpty();
+	}
+
+	Rational getConstant() {
+		/* the value of a polynomial with no variables, or null */
+		if (terms_.isEmpty()) {
+			return Rational.ZERO;
+		}
+		if (terms_.size() == 1) {
+			return terms_.get(Monomial.ONE);
+		}
+		return null;
+	}
+
+	void addTerm(Monomial monomial, Rational coefficient) {
+		/* like terms are combined in place, and a term that cancels is removed */
+		Rational current = terms_.get(monomial);
+		Rational sum = current == null ? coefficient : current.add(coefficient);
+		if (sum.signum() == 0) {
+			terms_.remove(monomial);
+		} else {
+			terms_.put(monomial, sum);
+		}
+	}
+
+	void addAll(SparsePolynomial other) {
+		/* add other into this polynomial in place */
+		for (Map.Entry<Monomial, Rational> term : other.terms_.entrySet()) {
+			addTerm(term.getKey(), term.getValue());
+		}
+	}
+
+	SparsePolynomial add(SparsePolynomial other) {
+		SparsePolynomial result = new SparsePolynomial(new HashMap<Monomial, Rational>(terms_));
+		for (Map.Entry<Monomial, Rational> term : other.terms_.entrySet()) {
+			result.addTerm(term.getKey(), term.getValue());
+		}
+		return result;
+	}
+
+	SparsePolynomial subtract(SparsePolynomial other) {
+		return add(other.negate());
+	}
+
+	SparsePolynomial negate() {
+		return scale(Rational.ONE.negate());
+	}
+
+	SparsePolynomial scale(Rational factor) {
+		SparsePolynomial result = new SparsePolynomial();
+		if (factor.signum() != 0) {
+			for (Map.Entry<Monomial, Rational> term : terms_.entrySet()) {
+				result.terms_.put(term.getKey(), term.getValue().multiply(factor));
+			}
+		}
+		return result;
+	}
+
+	SparsePolynomial multiply(SparsePolynomial other) {
+		return multiply(other, Integer.MAX_VALUE);
+	}
+
+	SparsePolynomial multiply(SparsePolynomial other, int limit) {
+		/* every pair of terms, combined as they are produced. null if an exponent overflows or the
+		 * product grows past limit terms, which is noticed as soon as it happens */
+		SparsePolynomial result = new SparsePolynomial();
+		for (Map.Entry<Monomial, Rational> lhs : terms_.entrySet()) {
+			for (Map.Entry<Monomial, Rational> rhs : other.terms_.entrySet()) {
+				Monomial monomial = lhs.getKey().multiply(rhs.getKey());
+				if (monomial == null) {
+					return null;
+				}
+				result.addTerm(monomial, lhs.getValue().multiply(rhs.getValue()));
+			}
+			if (result.size() > limit) {
+				return null;
+			}
+		}
+		return result;
+	}
+
+	SparsePolynomial pow(int exponent) {
+		return pow(exponent, Integer.MAX_VALUE);
+	}
+
+	SparsePolynomial pow(int exponent, int limit) {
+		/* by repeated squaring, or null if an exponent overflows or a power grows past limit terms */
+		SparsePolynomial result = constant(Rational.ONE);
+		SparsePolynomial square = this;
+		while (true) {
+			if ((exponent & 1) != 0) {
+				result = result.multiply(square, limit);
+				if (result == null) {
+					return null;
+				}
+			}
+			exponent >>= 1;
+			if (exponent == 0) {
+				return result;
+			}
+			square = square.multiply(square, limit);
+			if (square == null) {
+				return null;
+			}
+		}
+	}
+
+	Monomial getLeading() {
+		/* the largest monomial in lexicographic order, or null for zero */
+		Monomial leading = null;
+		for (Monomial monomial : terms_.keySet()) {
+			if (leading == null || monomial.compareTo(leading) > 0) {
+				leading = monomial;
+			}
+		}
+		return leading;
+	}
+
+	Rational getCoefficient(Monomial monomial) {
+		Rational coefficient = terms_.get(monomial);
+		return coefficient == null ? Rational.ZERO : coefficient;
+	}
+
+	Monomial getMonomialGcd() {
+		/* the largest monomial that divides every term */
+		Monomial gcd = null;
+		for (Monomial monomial : terms_.keySet()) {
+			gcd = gcd == null ? monomial : gcd.gcd(monomial);
+		}
+		return gcd == null ? Monomial.ONE : gcd;
+	}
+
+	SparsePolynomial divide(Monomial divisor) {
+		/* only meaningful when the monomial divides every term */
+		SparsePolynomial result = new SparsePolynomial();
+		for (Map.Entry<Monomial, Rational> term : terms_.entrySet()) {
+			result.terms_.put(term.getKey().divide(divisor), term.getValue());
+		}
+		return result;
+	}
+
+	SparsePolynomial[] divide(SparsePolynomial divisor) {
+		/* the quotient and remainder of division by the leading term of the divisor. the quotient is
+		 * exact when the remainder is zero, and with one variable this is ordinary long division. what
+		 * is left to divide is kept sorted and reduced in place, so each step costs one pass over the
+		 * divisor. null if an exponent overflows along the way */
+		Monomial leading = divisor.getLeading();
+		Rational leadingCoefficient = divisor.terms_.get(leading);
+		SparsePolynomial quotient = new SparsePolynomial();
+		SparsePolynomial remainder = new SparsePolynomial();
+		TreeMap<Monomial, Rational> remaining = new TreeMap<Monomial, Rational>(terms_);
+		SparsePolynomial rest = new SparsePolynomial(remaining);
+		while (!rest.isZero()) {
+			Monomial top = remaining.lastKey();
+			Rational coefficient = remaining.remove(top);
+			if (!leading.divides(top)) {
+				remainder.addTerm(top, coefficient);
+				continue;
+			}
+			Monomial monomial = top.divide(leading);
+			Rational multiple = coefficient.divide(leadingCoefficient);
+			quotient.addTerm(monomial, multiple);
+			for (Map.Entry<Monomial, Rational> term : divisor.terms_.entrySet()) {
+				if (term.getKey() == leading) {
+					continue; /* cancels the term just removed */
+				}
+				Monomial product = monomial.multiply(term.getKey());
+				if (product == null) {
+					return null;
+				}
+				rest.addTerm(product, term.getValue().multiply(multiple).negate());
+			}
+		}
+		return new SparsePolynomial[] { quotient, remainder };
+	}
+
+	int getSoleVariable() {
+		/* the one variable every term is written in, -1 for a constant or -2 if there are several */
+		int sole = -1;
+		for (Monomial monomial : terms_.keySet()) {
+			for (int i = 0; i < monomial.variables(); ++i) {
+				if (monomial.degree(i) == 0 || i == sole) {
+					continue;
+				}
+				if (sole >= 0) {
+					return -2;
+				}
+				sole = i;
+			}
+		}
+		return sole;
+	}
+
+	SparsePolynomial monic() {
+		/* scaled so that the leading coefficient is one */
+		if (isZero()) {
+			return this;
+		}
+		return scale(terms_.get(getLeading()).reciprocal());
+	}
+
+	static SparsePolynomial gcd(SparsePolynomial a, SparsePolynomial b) {
+		/* Euclid's algorithm, which is only a greatest common divisor when both are in one variable.
+		 * null if an exponent overflows */
+		while (!b.isZero()) {
+			SparsePolynomial[] division = a.divide(b);
+			if (division == null) {
+				return null;
+			}
+			a = b;
+			b = division[1];
+		}
+		return a.monic();
+	}
+
+	Expression toExpression(Variables variables) {
+		return toExpression(variables, Monomial.ONE);
+	}
+
+	Expression toExpression(Variables variables, Monomial divisor) {
+		/* terms in increasing order, each written with its coefficient in the way Simplify writes them,
+		 * and divided by what is left of divisor once the variables they share are cancelled */
+		List<Monomial> monomials = new ArrayList<Monomial>(terms_.keySet());
+		Collections.sort(monomials);
+		List<Expression> terms = new ArrayList<Expression>();
+		for (Monomial monomial : monomials) {
+			Monomial common = monomial.gcd(divisor);
+			List<Expression> factors = getFactors(monomial.divide(common), variables);
+			Rational coefficient = terms_.get(monomial);
+			Monomial rest = divisor.divide(common);
+			if (rest.isOne()) {
+				terms.add(Iterator.listProduct(Simplify.scale(coefficient, factors)));
+				continue;
+			}
+			List<Expression> denominator = getFactors(rest, variables);
+			if (!coefficient.denominator().equals(Rational.ONE)) {
+				denominator.add(0, Expression.constant(coefficient.denominator()));
+			}
+			if (!coefficient.numerator().equals(Rational.ONE) || factors.isEmpty()) {
+				factors.add(0, Expression.constant(coefficient.numerator()));
+			}
+			terms.add(Expression.divide(Iterator.listProduct(factors), Iterator.listProduct(denominator)));
+		}
+		return Iterator.listSum(terms);
+	}
+
+	static List<Expression> getFactors(Monomial monomial, Variables variables) {
+		/* a power for each variable of the monomial */
+		List<Expression> factors = new ArrayList<Expression>();
+		for (int i = 0; i < monomial.variables(); ++i) {
+			int degree = monomial.degree(i);
+			if (degree == 1) {
+				factors.add(variables.get(i));
+			} else if (degree > 1) {
+				factors.add(Expression.exponentiate(variables.get(i), Expression.constant(Rational.valueOf(degree))));
+			}
+		}
+		return factors;
+	}
+
+	public boolean equals(Object other) {
+		return other instanceof SparsePolynomial && terms_.equals(((SparsePolynomial)other).terms_);
+	}
+
+	public int hashCode() {
+		return terms_.hashCode();
+	}
+
+	public String toString() {
+		return terms_.toString();
+	}
+
+	private final Map<Monomial, Rational> terms_;
+}
@@ -1,27 +1,54 @@
 package jsolve;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
 public class Substitution {
 	static Expression substitute(Expression a, Expression b, Expression c) {
 		/* substitute occurrences of expression 'b' with 'c' in expression 'a' */
-		if (Canonicalizer.compare(a, b)) {
-			return c;
-		} else if (a.isBinary()) {
-			Expression result = a.copy();
-			result.setLeft(substitute(a.getLeft(), b, c));
-			result.setRight(substitute(a.getRight(), b, c));
-			return result;
-		} else if (a.isUnary()) {
-			Expression result = a.copy();
-			result.setChild(substitute(a.getChild(), b, c));
-			return result;
-		} else {
-			return a;
+		Map<Expression, Expression> result = new IdentityHashMap<Expression, Expression>();
+		Deque<Expression> stack = new ArrayDeque<Expression>();
+		stack.push(a);
+		while (!stack.isEmpty()) {
+			Expression top = stack.peek();
+			if (result.containsKey(top)) {
+				stack.pop();
+			} else if (top.equals(b)) {
+				result.put(top, c);
+				stack.pop();
+			} else if (top.isBinary()) {
+				Expression left = result.get(top.getLeft());
+				Expression right = result.get(top.getRight());
+				if (left != null && right != null) {
+					result.put(top, Expression.binary(top.getType(), left, right));
+					stack.pop();
+				} else {
+					if (right == null) {
+						stack.push(top.getRight());
+					}
+					if (left == null) {
+						stack.push(top.getLeft());
+					}
+				}
+			} else if (top.isUnary()) {
+				Expression child = result.get(top.getChild());
+				if (child != null) {
+					result.put(top, Expression.unary(top.getType(), child));
+					stack.pop();
+				} else {
+					stack.push(top.getChild());
+				}
+			} else {
+				result.put(top, top);
+				stack.pop();
+			}
 		}
+		return result.get(a);
 	}
 
 	static class Candidate {
@@ -46,7 +73,7 @@ public class Substitution {
 	};
 
 	static Expression candidate(Expression expression, String variable) {
-		Map<String, Candidate> map = new HashMap<String, Candidate>();
+		Map<Expression, Candidate> map = new LinkedHashMap<Expression, Candidate>();
 		List<Expression> stack = new ArrayList<Expression>();
 		if (expression.isBinary()) {
 			stack.add(expression.getLeft());
@@ -67,7 +94,7 @@ public class Substitution {
 				continue;
 			}
 			if (top.contains(variable)) {
-				String hash = Canonicalizer.toString(top);
+				Expression hash = Canonicalizer.canonicalize(top);
 				Candidate candidate = map.get(hash);
 				if (candidate == null) {
 					candidate = new Candidate();
@@ -79,10 +106,9 @@ public class Substitution {
 				map.put(hash, candidate);
 			}
 		}
-		Expression newVariable = new Expression(allocateVariable(expression));
+		Expression newVariable = Expression.symbol(allocateVariable(expression));
 		Candidate candidate = null;
-		for (String hash : map.keySet()) {
-			Candidate next = map.get(hash);
+		for (Candidate next : map.values()) {
 			Expression substitution = substitute(expression, next.getExpression(), newVariable);
 			if (substitution.contains(variable)) {
 				continue; /* does not eliminate the original variable */
@@ -98,17 +124,8 @@ public class Substitution {
 	}
 
 	static List<String> getSymbols(Expression expression) {
-		/* return a list of all symbols used in an expression */
-		List<String> result = new ArrayList<String>();
-		if (expression.isUnary()) {
-			result.addAll(getSymbols(expression.getChild()));
-		} else if (expression.isBinary()) {
-			result.addAll(getSymbols(expression.getLeft()));
-			result.addAll(getSymbols(expression.getRight()));
-		} else {
-			result.add(expression.getSymbol());
-		}
-		return result;
+		/* return a list of the variables used in an expression */
+		return expression.getVariables();
 	}
 
 	static String allocateVariable(Expression expression) {
@@ -117,16 +134,8 @@ public class Substitution {
 			"a", "b", "c", "d", /*"e",*/ "f", "g", "h", /*"i",*/ "j", "k", "l",
 			"m", "n", "o", "p", "q", "r", "s", "t", "u", "v", "w", "x", "y", "z"
 		};
-		List<String> symbols = getSymbols(expression);
 		for (String variable : variables) {
-			boolean used = false;
-			for (String symbol : symbols) {
-				if (symbol.equals(variable)) {
-					used = true;
-					break;
-				}
-			}
-			if (!used) {
+			if (!expression.contains(variable)) {
 				return variable;
 			}
 		}
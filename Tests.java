@@ -10,6 +10,180 @@ public class Tests {
 			System.out.println("FAIL: " + test + " = " + result + ", instead: " + expression.toString());
 		}
 	}
+	static void logarithm(String base, String value, String result) {
+		/* there is no syntax for logarithms, so the node is built directly */
+		Expression expression = Expression.logarithm(Parser.parse(base), Parser.parse(value));
+		String test = expression.toString();
+		expression = Simplify.evaluate(expression);
+		if (expression.toString().equals(result)) {
+			System.out.println("PASS: " + test + " = " + result);
+		} else {
+			System.out.println("FAIL: " + test + " = " + result + ", instead: " + expression.toString());
+		}
+	}
+
+	static void saturate(String test, String result) {
+		Expression expression = Simplify.saturate(Parser.parse(test));
+		if (expression.equals(Parser.parse(result))) {
+			System.out.println("PASS: " + test + " = " + result);
+		} else {
+			System.out.println("FAIL: " + test + " = " + result + ", instead: " + expression.toString());
+		}
+	}
+	static void oscillate(String first, String second) {
+		/* two rewrites that undo each other, the loop has to stop on the cycle with the smaller form */
+		Expression a = Parser.parse(first);
+		Expression b = Parser.parse(second);
+		Expression smaller = a.size() <= b.size() ? a : b;
+		long cycles = Fixpoint.cycles.get();
+		Fixpoint fixpoint = new Fixpoint(a);
+		Expression state = a;
+		int steps = 0;
+		do {
+			state = state == a ? b : a;
+		} while (fixpoint.next(state) && ++steps < 100);
+		if (fixpoint.getResult() == smaller && Fixpoint.cycles.get() > cycles) {
+			System.out.println("PASS: " + first + " <-> " + second + " stops at " + smaller);
+		} else {
+			System.out.println("FAIL: " + first + " <-> " + second + " stops at " + smaller + ", instead: " + fixpoint.getResult());
+		}
+	}
+	static void parallel(int count) {
+		/* the same sum folded on one core and on many, over different variables so no results are shared */
+		StringBuilder sequential = new StringBuilder();
+		StringBuilder parallel = new StringBuilder();
+		for (int i = 0; i < count; ++i) {
+			String term = (i == 0 ? "" : " + ") + "(#^" + (i % 7) + " + " + (i % 5) + "/3)*(# - " + (i % 11) + ")*#";
+			sequential.append(term.replace("#", "u"));
+			parallel.append(term.replace("#", "v"));
+		}
+		Expression expected = Simplify.simplify(Parser.parse(sequential.toString()));
+		Simplify.parallel = true;
+		Expression result = Simplify.simplify(Parser.parse(parallel.toString()));
+		Simplify.parallel = false;
+		expected = Substitution.substitute(expected, Expression.symbol("u"), Expression.symbol("v"));
+		if (result.equals(expected)) {
+			System.out.println("PASS: parallel fold of " + count + " terms");
+		} else {
+			System.out.println("FAIL: parallel fold of " + count + " terms, instead " + result + " rather than " + expected);
+		}
+	}
+	static void collect(String test, String variable, String result) {
+		/* terms are grouped by the factor holding the variable, in the order the groups are first met */
+		Expression collected = Collector.collect(Parser.parse(test), variable);
+		if (collected.toString().equals(result)) {
+			System.out.println("PASS: " + test + " collects in " + variable + " to " + result);
+		} else {
+			System.out.println("FAIL: " + test + " collects in " + variable + " to " + result + ", instead: " + collected);
+		}
+	}
+	static void normalize(String test, String result) {
+		/* a normalized result is its own normal form, so folding it again reuses the first pass */
+		Expression normalized = Collector.normalizeExponents(Parser.parse(test));
+		if (normalized.toString().equals(result) && normalized.normalized_ == normalized
+				&& Collector.normalizeExponents(normalized) == normalized) {
+			System.out.println("PASS: " + test + " normalizes once to " + result);
+		} else {
+			System.out.println("FAIL: " + test + " normalizes once to " + result + ", instead: " + normalized + " then " + normalized.normalized_);
+		}
+	}
+	static void memo(int capacity, int count) {
+		/* a full table evicts its least recently used entries and keeps the newest */
+		Memo memo = new Memo(capacity);
+		for (int i = 0; i < count; ++i) {
+			memo.put(Parser.parse("x + " + i), Expression.symbol(Integer.toString(i)));
+		}
+		Expression last = memo.get(Parser.parse("x + " + (count - 1)));
+		boolean passed = memo.size() <= capacity && memo.evictions_.get() == count - memo.size()
+				&& last == Expression.symbol(Integer.toString(count - 1)) && memo.hits_.get() == 1;
+		if (passed) {
+			System.out.println("PASS: memo of " + capacity + " entries after " + count + " results");
+		} else {
+			System.out.println("FAIL: memo of " + capacity + " entries after " + count + " results, instead: " + memo.statistics());
+		}
+	}
+	static void memoize(String test, String reordered) {
+		/* the same tree built again, or with its terms and factors reordered, is answered by the tables */
+		long evaluations = Simplify.evaluations.hits_.get();
+		long simplifications = Simplify.simplifications.hits_.get();
+		Expression first = Simplify.evaluate(Parser.parse(test));
+		Expression second = Simplify.evaluate(Parser.parse(reordered));
+		Expression simplified = Simplify.simplify(Parser.parse(test + " + 0*z"));
+		Expression again = Simplify.simplify(Parser.parse("0*z + " + reordered));
+		boolean hit = first == second && Simplify.evaluations.hits_.get() == evaluations + 1
+				&& simplified == again && Simplify.simplifications.hits_.get() > simplifications;
+		if (hit) {
+			System.out.println("PASS: " + test + " is evaluated once");
+		} else {
+			System.out.println("FAIL: " + test + " is evaluated once, instead: " + Simplify.evaluations.statistics()
+					+ ", simplify " + Simplify.simplifications.statistics());
+		}
+	}
+	static void polynomial(int count) {
+		/* a product of two sums of count terms multiplies out to count*count terms, and collects into one
+		 * group for each power of x after the first, with the terms free of x left in the sum */
+		StringBuilder lhs = new StringBuilder();
+		StringBuilder rhs = new StringBuilder();
+		for (int i = 0; i < count; ++i) {
+			lhs.append(i == 0 ? "" : " + ").append(i + 1).append("*x^").append(i);
+			rhs.append(i == 0 ? "" : " + ").append(i + 2).append("*y^").append(i);
+		}
+		Expression product = Simplify.simplify(Parser.parse("(" + lhs + ")*(" + rhs + ")"));
+		Expression expanded = Expander.expand(product);
+		Expression collected = Collector.collect(expanded, "x");
+		int terms = Iterator.getTerms(expanded).size();
+		int groups = 0;
+		for (Expression term : Iterator.getTerms(collected)) {
+			groups += term.contains("x") ? 1 : 0;
+		}
+		if (terms == count * count && groups == count - 1) {
+			System.out.println("PASS: product of " + count + " term polynomials");
+		} else {
+			System.out.println("FAIL: product of " + count + " term polynomials, instead: " + terms + " terms in " + groups + " groups");
+		}
+	}
+	static void horner(int depth) {
+		/* 1 + x*(1 + x*(...)) nested deep enough to overflow any fold that recurses into its operands */
+		StringBuilder nested = new StringBuilder();
+		for (int i = 0; i < depth; ++i) {
+			nested.append("1 + x*(");
+		}
+		nested.append("1");
+		for (int i = 0; i < depth; ++i) {
+			nested.append(")");
+		}
+		Expression result = Simplify.evaluate(Parser.parse(nested.toString()));
+		int terms = Iterator.getTerms(result).size();
+		if (terms == depth + 1) {
+			System.out.println("PASS: horner form of depth " + depth);
+		} else {
+			System.out.println("FAIL: horner form of depth " + depth + ", instead: " + terms + " terms");
+		}
+	}
+	static void stress(int count) {
+		/* sums long enough to overflow any traversal that recurses along the chain of terms */
+		String[] terms = {"x", "2*y", "x^2", "z/3", "(y-1)"};
+		StringBuilder forward = new StringBuilder();
+		StringBuilder backward = new StringBuilder();
+		for (int i = 0; i < count; ++i) {
+			forward.append(i == 0 ? "" : " + ").append(terms[i % terms.length]);
+			backward.append(i == 0 ? "" : " + ").append(terms[(count - 1 - i) % terms.length]);
+		}
+		Expression expression = Parser.parse(forward.toString());
+		Expression reordered = Parser.parse(backward.toString());
+		Expression substituted = Substitution.substitute(expression, Expression.symbol("x"), Parser.parse("w+1"));
+		boolean passed = Parser.parse(expression.toString()) == expression && expression.equals(reordered)
+				&& substituted.contains("w") && !substituted.contains("x") && !expression.isDegenerate();
+		int n = count / terms.length;
+		Expression expected = Parser.parse(n + "*x + " + 3*n + "*y + " + n + "*x^2 + " + n + "*z/3 - " + n);
+		Expression result = Simplify.simplify(expression);
+		passed = passed && Parser.parse(result.toString()).equals(expected);
+		if (passed) {
+			System.out.println("PASS: sum of " + count + " terms parsed, simplified and printed");
+		} else {
+			System.out.println("FAIL: sum of " + count + " terms parsed, simplified and printed, instead: " + result);
+		}
+	}
 	public static void main(String[] args) {
 		evaluate("1 + 1", "2");
 		evaluate("3/4 + 4/3", "(25/12)");
@@ -20,8 +194,38 @@ public class Tests {
 		evaluate("2^a * 2^b", "(2^(a+b))");
 		evaluate("(-1)^(1/2)", "i");
 		evaluate("e^(i*pi) + 1", "0");
+		evaluate("e^(i*pi*5/6)", "((i/2)-((3^(1/2))/2))");
+		evaluate("e^(i*pi/10)", "((((10+(2*(5^(1/2))))^(1/2))/4)+((i*((5^(1/2))-1))/4))");
+		evaluate("e^(i*pi*7)", "(-1)");
+		evaluate("72^(1/2)", "(6*(2^(1/2)))");
+		evaluate("8^(2/3)", "4");
+		evaluate("(2^80)^(1/16)", "32");
+		evaluate("8^(1/2)", "(2*(2^(1/2)))");
+		evaluate("72^(3/2)", "(432*(2^(1/2)))");
+		evaluate("27^(1/6)", "(3^(1/2))");
+		evaluate("4^(1/4)", "(2^(1/2))");
+		logarithm("4", "8", "(3/2)");
+		logarithm("2", "1024", "10");
+		logarithm("8", "4", "(2/3)");
+		logarithm("1024", "8", "(3/10)");
+		evaluate("5! - 3!*20", "0");
+		evaluate("(25!)/(23!)", "600");
+		evaluate("(1 + 2*i)*(3 - i) + i^7", "(5+(4*i))");
+		evaluate("(1 + i)/(1 - i) + (-1)^(1/2)", "(2*i)");
+		evaluate("1/(2*i)", "(-(i/2))");
+		evaluate("(3 - i)*(1 - i)", "(2-(4*i))");
+		evaluate("-i/3 - 1/2", "((-(1/2))-(i/3))");
 		evaluate("x*x", "(x^2)");
+		evaluate("(x^2 - 1)/(x - 1) - x", "1");
+		evaluate("(a+b)/(a+b)^2", "(1/(a+b))");
+		evaluate("(x+y+1)/((x+y+1)*z)", "(1/z)");
+		evaluate("(x-x)/(x-x)", "(0/0)");
+		evaluate("(x^3 - 1)/(x^2 + x + 1) - x", "(-1)");
+		evaluate("(a^2 - b^2)/(a - b) - a - b", "0");
+		evaluate("(x + y + 1)^6 - (x^2 + 2*x*y + y^2 + 2*x + 2*y + 1)^3", "0");
 		evaluate("3/x + 7/x", "(10/x)");
+		evaluate("(x^4 - 1)/(x^2 + 1)/x^2", "(1-(1/(x^2)))");
+		evaluate("(x + y + z + w + 1)^30", "(((((x+y)+z)+w)+1)^30)");
 		evaluate("1/3 - 3^(-1)", "0");
 		evaluate("(a + 1/x) * x^2", "(x+(a*(x^2)))");
 		evaluate("(x - 1/3)^3 + (x - 1/3)^2 + (x - 1/3)", "(((x^3)+((2*x)/3))-(7/27))");
@@ -33,6 +237,19 @@ public class Tests {
 		evaluate("((x - 1/(3*x))^3 + (x - 1/(3*x))) * x^3", "((x^6)-(1/27))");
 		evaluate("((x - a/3*x^(-1))^3 + a*(x - a/3*x^(-1))) * x^3", "((x^6)-((a^3)/27))");
 		evaluate("((x - a/(3*x))^3 + a*(x - a/(3*x))) * x^3", "((x^6)-((a^3)/27))");
-		evaluate("((x - a/3*x^(-1))^3 + a*(x - a/3*x^(-1)) + b) * x^3", "(((x^6)+(b*(x^3)))-((a^3)/27))");
+		evaluate("((x - a/3*x^(-1))^3 + a*(x - a/3*x^(-1)) + b) * x^3", "(((x^6)+((x^3)*b))-((a^3)/27))");
+		normalize("x*x*y/x/x/x + 2*a*a*a*b", "((y/x)+((2*(a^3))*b))");
+		normalize("y/(x*x*x)", "(y/(x^3))");
+		collect("(x+1)*a + b*(1+x) + 2 + c*x^2 + x^2", "x", "((((x+1)*(b+a))+2)+((x^2)*(1+c)))");
+		memo(64, 1000);
+		memoize("(x + 1)*(x - 1) + 2^(1/2)*y", "y*2^(1/2) + (x - 1)*(x + 1)");
+		polynomial(60);
+		parallel(2000);
+		oscillate("2*y + 2*1", "2*(y+1)");
+		stress(1000000);
+		horner(3000);
+		saturate("x*y + x*y - 2*x*y", "0");
+		saturate("(x + 1)*(x + 1) - x*x - 2*x", "1");
+		saturate("a*x/b + c*x/b", "(a + c)*x/b");
 	}
 }